@@ -11,6 +11,7 @@ import edu.stanford.nlp.semparse.open.core.ParallelizedTrainer;
 import edu.stanford.nlp.semparse.open.core.eval.Evaluator;
 import edu.stanford.nlp.semparse.open.core.eval.EvaluatorStatistics;
 import edu.stanford.nlp.semparse.open.core.eval.IterativeTester;
+import edu.stanford.nlp.semparse.open.dataset.CompiledDataset;
 import edu.stanford.nlp.semparse.open.dataset.Dataset;
 import edu.stanford.nlp.semparse.open.dataset.library.DatasetLibrary;
 import edu.stanford.nlp.semparse.open.util.Parallelizer;
@@ -62,6 +63,8 @@ public class Main implements Runnable {
     @Option(gloss="filename for saving a trained model") public String saveModel = null;
     @Option(gloss="filename for loading a trained model") public String loadModel = null;
     @Option(gloss="number of folds") public int folds = 1;
+    @Option(gloss="binary file of extracted candidates and features; loaded if it matches the extraction options, "
+        + "otherwise written after extraction") public String compiledDataset = null;
   }
   public static Options opts = new Options();
   
@@ -94,7 +97,7 @@ public class Main implements Runnable {
       new InteractiveDemo(parser).run();
     } else {
       // Test on the specified data set
-      new OpenSemanticParser().preTrain(dataset);
+      preTrain(dataset);
       testCombined(parser, dataset);
     }
     OpenSemanticParser.cleanUp();
@@ -111,13 +114,24 @@ public class Main implements Runnable {
     Execution.putOutput("numTrainExamples", dataset.trainExamples.size());
     Execution.putOutput("numTestExamples", dataset.testExamples.size());
     OpenSemanticParser.init();
-    new OpenSemanticParser().preTrain(dataset);
+    preTrain(dataset);
     dataset.cacheRewards();
     List<IterativeTester> iterativeTesters = (opts.folds > 1) ? runParallel(dataset) : runSingle(dataset);
     OpenSemanticParser.cleanUp();
     summarize(iterativeTesters);
   }
 
+  /**
+   * Extract the candidates and features of all examples, or load them from the compiled dataset.
+   */
+  private void preTrain(Dataset dataset) {
+    boolean loaded = opts.compiledDataset != null
+        && CompiledDataset.load(opts.compiledDataset, opts.dataset, dataset);
+    new OpenSemanticParser().preTrain(dataset);
+    if (opts.compiledDataset != null && !loaded)
+      CompiledDataset.save(opts.compiledDataset, opts.dataset, dataset);
+  }
+
   // ============================================================
   // Parallelization
   // ============================================================
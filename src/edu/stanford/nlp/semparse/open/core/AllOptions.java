@@ -4,6 +4,7 @@ import java.io.*;
 import java.util.*;
 
 import edu.stanford.nlp.semparse.open.Main;
+import edu.stanford.nlp.semparse.open.core.eval.IterativeTester;
 import edu.stanford.nlp.semparse.open.dataset.ExpectedAnswer;
 import edu.stanford.nlp.semparse.open.dataset.ExpectedAnswerCriteriaMatch;
 import edu.stanford.nlp.semparse.open.dataset.ExpectedAnswerInjectiveMatch;
@@ -18,11 +19,14 @@ import edu.stanford.nlp.semparse.open.ling.WordVectorTable;
 import edu.stanford.nlp.semparse.open.model.AdvancedWordVectorParams;
 import edu.stanford.nlp.semparse.open.model.AdvancedWordVectorParamsLowRank;
 import edu.stanford.nlp.semparse.open.model.LearnerBaseline;
+import edu.stanford.nlp.semparse.open.model.LearnerLBFGS;
 import edu.stanford.nlp.semparse.open.model.LearnerMaxEnt;
 import edu.stanford.nlp.semparse.open.model.LearnerMaxEntWithBeamSearch;
 import edu.stanford.nlp.semparse.open.model.Params;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGenerator;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.model.candidate.PageCache;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractor;
 import edu.stanford.nlp.semparse.open.model.feature.FeaturePostProcessorConjoin;
 import edu.stanford.nlp.semparse.open.model.feature.FeatureType;
 import edu.stanford.nlp.semparse.open.model.feature.FeatureTypeHoleBased;
@@ -32,6 +36,7 @@ import edu.stanford.nlp.semparse.open.model.feature.FeatureTypeNodeBased;
 import edu.stanford.nlp.semparse.open.model.feature.FeatureTypePathBased;
 import edu.stanford.nlp.semparse.open.model.tree.KnowledgeTreeBuilder;
 import edu.stanford.nlp.semparse.open.util.Parallelizer;
+import edu.stanford.nlp.semparse.open.util.SHA;
 import fig.basic.LogInfo;
 import fig.basic.OptionsParser;
 import fig.basic.OrderedStringMap;
@@ -49,11 +54,13 @@ public class AllOptions {
     parser.registerAll(new Object[] {
         "main", Main.opts,
         "OpenSemanticParser", OpenSemanticParser.opts,
+        "IterativeTester", IterativeTester.opts,
         "Parallelizer", Parallelizer.opts,
         // Dataset
         "AbstractJSONDatasetReader", JSONDatasetReader.opts,
         "CandidateGenerator", CandidateGenerator.opts,
         "CandidateGroup", CandidateGroup.opts,
+        "PageCache", PageCache.opts,
         "ExpectedAnswer", ExpectedAnswer.opts,
         "ExpectedAnswerInjectiveMatch", ExpectedAnswerInjectiveMatch.opts,
         "ExpectedAnswerCriteriaMatch", ExpectedAnswerCriteriaMatch.opts,
@@ -63,6 +70,7 @@ public class AllOptions {
         "AdvancedWordVectorParams", AdvancedWordVectorParams.opts,
         "AdvancedWordVectorParamsLowRank", AdvancedWordVectorParamsLowRank.opts,
         "LearnerBaseline", LearnerBaseline.opts,
+        "LearnerLBFGS", LearnerLBFGS.opts,
         "LearnerMaxEnt", LearnerMaxEnt.opts,
         "LearnerMaxEntWithBeamSearch", LearnerMaxEntWithBeamSearch.opts,
         "Params", Params.opts,
@@ -75,6 +83,7 @@ public class AllOptions {
         "WordVectorTable", WordVectorTable.opts,
         // Features
         "FeatureType", FeatureType.opts,
+        "FeatureExtractor", FeatureExtractor.opts,
         "FeatureTypeHoleBased", FeatureTypeHoleBased.opts,
         "FeatureTypeNaiveEntityBased", FeatureTypeNaiveEntityBased.opts,
         "FeatureTypeLinguisticsBased", FeatureTypeLinguisticsBased.opts,
@@ -171,6 +180,7 @@ public class AllOptions {
       "AdvancedWordVectorParams",
       "AdvancedWordVectorParamsLowRank",
       "LearnerBaseline",
+      "LearnerLBFGS",
       "LearnerMaxEnt",
       "LearnerMaxEntWithBeamSearch",
       // Linguistic resources
@@ -201,5 +211,46 @@ public class AllOptions {
   public static boolean isImportantOption(String key) {
     return importantClasses.contains(key.split("\\.")[0]) || importantOptions.contains(key);
   }
+  
+  // ============================================================
+  // Persistence with compiled dataset
+  // ============================================================
+  
+  // Important classes that do not change the trees, candidates, or features before post-processing
+  private static Set<String> learningClasses = new HashSet<>(Arrays.asList(
+      "AdvancedWordVectorParams",
+      "AdvancedWordVectorParamsLowRank",
+      "LearnerBaseline",
+      "LearnerLBFGS",
+      "LearnerMaxEnt",
+      "LearnerMaxEntWithBeamSearch",
+      "FeaturePostProcessorConjoin"
+      ));
+  
+  /**
+   * Return true if the option affects the trees, candidates, or features (before post-processing)
+   * extracted from the examples.
+   */
+  public static boolean isExtractionOption(String key) {
+    return isImportantOption(key) && !learningClasses.contains(key.split("\\.")[0])
+        && !key.equals("OpenSemanticParser.learner");
+  }
+  
+  /**
+   * Return a fingerprint of the values of all extraction options (see isExtractionOption).
+   */
+  public static String getExtractionFingerprint() {
+    OrderedStringMap allOptions = getOptionsParser().getOptionPairs();
+    List<String> keys = new ArrayList<>();
+    for (String key : allOptions.keys()) {
+      if (isExtractionOption(key))
+        keys.add(key);
+    }
+    Collections.sort(keys);
+    StringBuilder sb = new StringBuilder();
+    for (String key : keys)
+      sb.append(key).append("\t").append(allOptions.get(key)).append("\n");
+    return SHA.toSHA1(sb.toString());
+  }
 
 }
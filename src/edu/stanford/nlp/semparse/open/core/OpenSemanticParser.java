@@ -14,12 +14,17 @@ import edu.stanford.nlp.semparse.open.dataset.entity.TargetEntity;
 import edu.stanford.nlp.semparse.open.ling.LingData;
 import edu.stanford.nlp.semparse.open.model.Learner;
 import edu.stanford.nlp.semparse.open.model.LearnerBaseline;
+import edu.stanford.nlp.semparse.open.model.LearnerLBFGS;
 import edu.stanford.nlp.semparse.open.model.LearnerMaxEnt;
 import edu.stanford.nlp.semparse.open.model.LearnerMaxEntWithBeamSearch;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGenerator;
+import edu.stanford.nlp.semparse.open.model.candidate.PageCache;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractionProfile;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractor;
 import edu.stanford.nlp.semparse.open.model.feature.FeaturePostProcessor;
 import edu.stanford.nlp.semparse.open.model.feature.FeatureType;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureTypeLinguisticsBased;
 import edu.stanford.nlp.semparse.open.model.tree.KnowledgeTreeBuilder;
 import edu.stanford.nlp.semparse.open.util.Parallelizer;
 import fig.basic.LogInfo;
@@ -43,7 +48,7 @@ public class OpenSemanticParser {
     public int logVerbosity = 3;
     @Option(gloss = "Don't print feature weights for correct answers")
     public boolean ignoreCorrectAnswers = true;
-    @Option(gloss = "Learner name (maxent / base / beam)")
+    @Option(gloss = "Learner name (maxent / base / beam / lbfgs)")
     public String learner = "maxent";
     @Option(gloss = "Whether to cheat and use only the candidates that contain the seed answer")
     public boolean useSeed = false;
@@ -73,7 +78,7 @@ public class OpenSemanticParser {
     LingData.saveCache();
   }
   
-  private Learner getLearner() {
+  private Learner createLearner() {
     switch (opts.learner) {
       case "maxent":
         //LogInfo.log("Using MaxEnt learner ...");
@@ -87,6 +92,8 @@ public class OpenSemanticParser {
         //LogInfo.logs("Using MaxEnt learner with beam search (beam size = %d) ...",
         //    LearnerMaxEntWithBeamSearch.opts.beamSize);
         return new LearnerMaxEntWithBeamSearch();
+      case "lbfgs":
+        return new LearnerLBFGS();
     }
     LogInfo.fails("Unknown learner: %s", opts.learner);
     return null;
@@ -105,13 +112,20 @@ public class OpenSemanticParser {
     // Process examples in the dataset
     extractData(dataset.trainExamples);
     extractData(dataset.testExamples);
+    if (PageCache.opts.pageCacheSize > 0) candidateGenerator.getPageCache().logStats();
+    if (FeatureType.isAllowedDomain("cluster")) FeatureTypeLinguisticsBased.logClusterPairStatistics();
+    if (FeatureExtractor.opts.profileFeatureExtraction) FeatureExtractionProfile.getTotal().logTable();
     LogInfo.end_track();
   }
   
-  private void extractData(List<Example> examples) {
+  /**
+   * Extract the data of the examples that have not been extracted yet.
+   */
+  public void extractData(List<Example> examples) {
     List<Example> toExtract = new ArrayList<>();
+    // Examples loaded from a CompiledDataset have candidates but no tree
     for (Example ex : examples)
-      if (ex.tree == null || ex.candidates == null)
+      if (ex.candidates == null)
         toExtract.add(ex);
     for (int i = 0; i < toExtract.size(); i++)
       toExtract.get(i).displayId = i + "/" + toExtract.size();
@@ -129,8 +143,11 @@ public class OpenSemanticParser {
   }
   
   private void extractData(Example ex) {
+    if (ex.candidates != null) return;
     LogInfo.begin_track("extractData (%s): %s", ex.displayId, ex.phrase);
     Execution.putOutput("currExample", ex.displayId);
+    // Reuse the candidates and page-level features of a previously seen web page
+    candidateGenerator.processFromPageCache(ex);
     if (ex.tree == null)
       knowledgeTreeBuilder.buildKnowledgeTree(ex);
     if (ex.candidates == null)
@@ -158,7 +175,7 @@ public class OpenSemanticParser {
     // Extract data
     extractData(dataset.trainExamples);
     // Learn a model
-    learner = getLearner();
+    learner = createLearner();
     if (beVeryQuiet) learner.shutUp();
     if (opts.testEveryIteration) {
       iterativeTester = new IterativeTester(this, dataset);
@@ -173,12 +190,16 @@ public class OpenSemanticParser {
     train(dataset, false);
   }
   
+  public Learner getLearner() {
+    return learner;
+  }
+  
   public IterativeTester getIterativeTester() {
     return iterativeTester;
   }
   
   public void load(String path) {
-    learner = getLearner();
+    learner = createLearner();
     learner.loadModel(path);
   }
   
@@ -199,11 +220,8 @@ public class OpenSemanticParser {
   }
   
   public CandidateStatistics predict(Example ex) {
-    extractData(ex);
-    List<Pair<Candidate, Double>> rankedCandidates = learner.getRankedCandidates(ex);
-    List<CandidateStatistics> rankedCandidateStats = CandidateStatistics.getRankedCandidateStats(rankedCandidates);
-    CandidateStatistics pred = (rankedCandidateStats.isEmpty()) ? null : rankedCandidateStats.get(0);
-    return pred;
+    List<CandidateStatistics> topCandidateStats = getTopCandidates(ex, 1);
+    return (topCandidateStats.isEmpty()) ? null : topCandidateStats.get(0);
   }
   
   public List<Pair<Candidate, Double>> getRankedCandidates(Example ex) {
@@ -211,22 +229,41 @@ public class OpenSemanticParser {
     return learner.getRankedCandidates(ex);
   }
   
+  /**
+   * Return the statistics of the top k candidates without sorting all candidates.
+   */
+  public List<CandidateStatistics> getTopCandidates(Example ex, int k) {
+    extractData(ex);
+    return learner.getTopCandidates(ex, k);
+  }
+  
   public Evaluator test(List<Example> examples, String testSuiteName) {
+    return test(examples, testSuiteName, learner, opts.logVerbosity);
+  }
+  
+  /**
+   * Test the given learner (e.g., a snapshot of the current learner) with the given log verbosity.
+   */
+  public Evaluator test(List<Example> examples, String testSuiteName, Learner learner, int logVerbosity) {
     Evaluator evaluator = new Evaluator(testSuiteName, learner);
     if (examples.isEmpty()) {
       LogInfo.warnings("Cannot test on an empty list %s", testSuiteName);
       return evaluator;
     }
     
-    if (opts.logVerbosity > 0)
+    if (logVerbosity > 0)
       LogInfo.begin_track("Testing on %s", testSuiteName);
     
     // Process examples in the dataset
     extractData(examples);
     
     for (Example ex : examples) {
-      List<Pair<Candidate, Double>> rankedCandidates = learner.getRankedCandidates(ex);
-      if (opts.useSeed) {
+      List<CandidateStatistics> rankedCandidateStats;
+      if (!opts.useSeed) {
+        // All candidates are needed to find the first true and the best candidates
+        rankedCandidateStats = learner.getTopCandidates(ex, Integer.MAX_VALUE);
+      } else {
+        List<Pair<Candidate, Double>> rankedCandidates = learner.getRankedCandidates(ex);
         // Only keep the candidates that contain the seed
         List<Pair<Candidate, Double>> filteredRankedCandidates = new ArrayList<>();
         TargetEntity seed = ex.expectedAnswer.targetEntities.get(1);
@@ -236,8 +273,8 @@ public class OpenSemanticParser {
             filteredRankedCandidates.add(pair);
         }
         rankedCandidates = filteredRankedCandidates;
+        rankedCandidateStats = CandidateStatistics.getRankedCandidateStats(rankedCandidates);
       }
-      List<CandidateStatistics> rankedCandidateStats = CandidateStatistics.getRankedCandidateStats(rankedCandidates);
       
       CandidateStatistics pred, firstTrue, best;
       pred = (rankedCandidateStats.isEmpty()) ? null : rankedCandidateStats.get(0);
@@ -247,14 +284,14 @@ public class OpenSemanticParser {
       // Send to evaluator
       EvaluationCase evaluationCase = evaluator.add(ex, pred, firstTrue, best);
       // Log stuff
-      if (opts.logVerbosity > 0) {
+      if (logVerbosity > 0) {
         LogInfo.begin_track("Found %d candidates for %s", ex.candidates.size(), ex);
         if (opts.ignoreCorrectAnswers && evaluationCase instanceof EvaluationSuccess) {
           LogInfo.logs("<%s SUCCESS> Rank 1 [Unique Rank 1]: (Total Feature Score = %s)",
               testSuiteName, pred.score);
         } else {
           // Log answer key
-          if (opts.logVerbosity >= 2) {
+          if (logVerbosity >= 2) {
             LogInfo.begin_track("Answer Key (%d entities):", ex.expectedAnswer.size());
             LogInfo.log(ex.expectedAnswer.sampleEntities());
             LogInfo.end_track();
@@ -267,7 +304,7 @@ public class OpenSemanticParser {
       }
     }
     
-    if (opts.logVerbosity > 0)
+    if (logVerbosity > 0)
       LogInfo.end_track();
     return evaluator;
   }
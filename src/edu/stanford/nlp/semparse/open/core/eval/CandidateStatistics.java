@@ -3,6 +3,7 @@ package edu.stanford.nlp.semparse.open.core.eval;
 import java.util.*;
 
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
+import edu.stanford.nlp.semparse.open.util.TopKSelector;
 import fig.basic.Pair;
 
 public class CandidateStatistics {
@@ -31,4 +32,20 @@ public class CandidateStatistics {
     }
     return answer;
   }
+  
+  /**
+   * Return the statistics of the top k candidates by score (ties are broken by the order in the list).
+   * Same as the first k entries of getRankedCandidateStats, but without sorting all candidates.
+   */
+  public static List<CandidateStatistics> getTopCandidateStats(List<Candidate> candidates, double[] scores, int k) {
+    int[] top = TopKSelector.select(scores, k);
+    List<CandidateStatistics> answer = new ArrayList<>(top.length);
+    Set<List<String>> foundPredictedEntities = new HashSet<>();
+    for (int rank = 0; rank < top.length; rank++) {
+      Candidate candidate = candidates.get(top[rank]);
+      foundPredictedEntities.add(candidate.predictedEntities);
+      answer.add(new CandidateStatistics(candidate, rank + 1, foundPredictedEntities.size(), scores[top[rank]]));
+    }
+    return answer;
+  }
 }
@@ -1,13 +1,30 @@
 package edu.stanford.nlp.semparse.open.core.eval;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import edu.stanford.nlp.semparse.open.Main;
 import edu.stanford.nlp.semparse.open.core.OpenSemanticParser;
 import edu.stanford.nlp.semparse.open.dataset.Dataset;
+import edu.stanford.nlp.semparse.open.dataset.Example;
+import edu.stanford.nlp.semparse.open.model.Learner;
 import fig.basic.LogInfo;
+import fig.basic.Option;
 
+/**
+ * Test the learner on the training and test sets after each training iteration.
+ *
+ * If the learner supports prediction snapshots (see Learner.getPredictionSnapshot), the snapshot
+ * is evaluated on a background thread while training continues. The results are still printed
+ * and recorded in iteration order on the calling thread.
+ */
 public class IterativeTester {
+  public static class Options {
+    @Option(gloss = "Evaluate a snapshot of the parameters on a background thread while training continues")
+    public boolean asyncIterativeTest = true;
+  }
+  public static Options opts = new Options();
+  
   private final OpenSemanticParser openSemanticParser;
   private final Dataset dataset;
   public String message = "";
@@ -16,6 +33,10 @@ public class IterativeTester {
   public boolean beVeryQuiet = false;
   public static final int MAX_K = 10;
   
+  // Evaluations that have not been recorded yet (in iteration order)
+  private final List<Future<Evaluator[]>> pending = new ArrayList<>();
+  private ExecutorService executor;
+  
   public IterativeTester(OpenSemanticParser openSemanticParser, Dataset dataset) {
     this.openSemanticParser = openSemanticParser;
     this.dataset = dataset;
@@ -23,19 +44,92 @@ public class IterativeTester {
     this.testStats = new ArrayList<>();
   }
   
-  public void run() {
-    int oldLogVerbosity = OpenSemanticParser.opts.logVerbosity;
-    OpenSemanticParser.opts.logVerbosity = 0;
-    trainStats.add(new EvaluatorStatistics(
-        openSemanticParser.test(dataset.trainExamples, "[" + message + "] ITERATIVE TEST on TRAINING SET")
-        .printScores(beVeryQuiet).putOutput("train")));
-    testStats.add(new EvaluatorStatistics(
-        openSemanticParser.test(dataset.testExamples, "[" + message + "] ITERATIVE TEST on TEST SET")
-        .printScores(beVeryQuiet).putOutput("test")));
-    OpenSemanticParser.opts.logVerbosity = oldLogVerbosity;
+  public synchronized void run() {
+    final String message = this.message;
+    Learner learner = openSemanticParser.getLearner();
+    final Learner snapshot = opts.asyncIterativeTest ? getPredictionSnapshot(learner) : null;
+    if (snapshot == null) {
+      waitForResults();
+      addResults(evaluate(learner, message));
+      return;
+    }
+    pending.add(getExecutor().submit(new Callable<Evaluator[]>() {
+      @Override
+      public Evaluator[] call() {
+        // Log in threads mode while this evaluation runs alongside the learner
+        LogInfo.begin_threads();
+        try {
+          return evaluate(snapshot, message);
+        } finally {
+          LogInfo.end_threads();
+        }
+      }
+    }));
+    // Record the evaluations that are already done
+    while (!pending.isEmpty() && pending.get(0).isDone())
+      addResults(getResult(pending.remove(0)));
+  }
+  
+  private Learner getPredictionSnapshot(Learner learner) {
+    // Extract on the calling thread so that the background thread only predicts
+    openSemanticParser.extractData(dataset.trainExamples);
+    openSemanticParser.extractData(dataset.testExamples);
+    List<Example> examples = new ArrayList<>(dataset.trainExamples);
+    examples.addAll(dataset.testExamples);
+    return learner.getPredictionSnapshot(examples);
+  }
+  
+  private Evaluator[] evaluate(Learner learner, String message) {
+    return new Evaluator[] {
+        openSemanticParser.test(dataset.trainExamples, "[" + message + "] ITERATIVE TEST on TRAINING SET", learner, 0),
+        openSemanticParser.test(dataset.testExamples, "[" + message + "] ITERATIVE TEST on TEST SET", learner, 0),
+    };
+  }
+  
+  private void addResults(Evaluator[] evaluators) {
+    trainStats.add(new EvaluatorStatistics(evaluators[0].printScores(beVeryQuiet).putOutput("train")));
+    testStats.add(new EvaluatorStatistics(evaluators[1].printScores(beVeryQuiet).putOutput("test")));
+  }
+  
+  private Evaluator[] getResult(Future<Evaluator[]> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  private ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "IterativeTester");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+  
+  /**
+   * Wait for the background evaluations and record their results.
+   */
+  public synchronized void waitForResults() {
+    try {
+      while (!pending.isEmpty())
+        addResults(getResult(pending.remove(0)));
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
+    }
   }
   
   public void summarize() {
+    waitForResults();
     LogInfo.begin_track("@@@ SUMMARY @@@");
     LogInfo.logs("%7s | %7s %7s %7s | %7s %7s %7s", "iter",
         "tracc", "trora", "traf1", "tsacc", "tsora", "tsaf1");
@@ -57,10 +151,12 @@ public class IterativeTester {
   }
 
   public EvaluatorStatistics getLastTrainStat() {
+    waitForResults();
     return trainStats.get(trainStats.size() - 1);
   }
   
   public EvaluatorStatistics getLastTestStat() {
+    waitForResults();
     return testStats.get(testStats.size() - 1);
   }
   
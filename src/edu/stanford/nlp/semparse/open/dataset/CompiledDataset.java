@@ -0,0 +1,252 @@
+package edu.stanford.nlp.semparse.open.dataset;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.stanford.nlp.semparse.open.core.AllOptions;
+import edu.stanford.nlp.semparse.open.model.FeatureVector;
+import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
+import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.model.candidate.PageCache;
+import edu.stanford.nlp.semparse.open.model.candidate.PathEntry;
+import edu.stanford.nlp.semparse.open.model.candidate.PathEntryWithRange;
+import edu.stanford.nlp.semparse.open.model.candidate.TreePattern;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractor;
+import edu.stanford.nlp.semparse.open.model.tree.KNode;
+import edu.stanford.nlp.semparse.open.util.BinaryStringTable;
+import edu.stanford.nlp.semparse.open.util.SHA;
+import fig.basic.LogInfo;
+
+/**
+ * A binary file with the extracted candidates of all examples in a dataset, so that
+ * a later run with the same extraction options can skip building the knowledge trees,
+ * generating candidates, and extracting features.
+ *
+ * For each example, the file stores the candidate groups (predicted entities, number of correct entities,
+ * and features before post-processing) and the candidates (XPath and features before post-processing).
+ * The post-processors are applied again when loading, so their options can differ between runs.
+ *
+ * The file is keyed by the dataset name and AllOptions.getExtractionFingerprint() (see getFingerprint),
+ * and each example is keyed by its phrase and its web page (see getExampleKey).
+ * Loaded examples have no knowledge tree, and the loaded groups have no selected nodes.
+ */
+public class CompiledDataset {
+  public static final String MAGIC = "CompiledDataset";
+  public static final int VERSION = 2;
+
+  private static final int PATH_ENTRY = 0, PATH_ENTRY_WITH_RANGE = 1;
+
+  private static List<Example> getAllExamples(Dataset dataset) {
+    List<Example> examples = new ArrayList<>(dataset.trainExamples);
+    examples.addAll(dataset.testExamples);
+    return examples;
+  }
+
+  /** Fingerprint of the dataset name and the extraction options */
+  public static String getFingerprint(String datasetName) {
+    return SHA.toSHA1("dataset\t" + datasetName + "\n" + AllOptions.getExtractionFingerprint());
+  }
+
+  /**
+   * The phrase and the web page of the example. Examples whose page is given by a URL or
+   * a frozen cache hashcode are identified by it (see PageCache.getPageKey); the pages of
+   * the other examples are found by search and are only identified by the phrase.
+   */
+  public static String getExampleKey(Example ex) {
+    String pageKey = PageCache.getPageKey(ex);
+    return pageKey == null ? ex.toString() : ex.toString() + " " + pageKey;
+  }
+
+  // ============================================================
+  // Save
+  // ============================================================
+
+  /**
+   * Save the candidates of all examples in the dataset. All examples must already have candidates.
+   */
+  public static void save(String filename, String datasetName, Dataset dataset) {
+    LogInfo.begin_track("Saving compiled dataset to %s", filename);
+    String fingerprint = getFingerprint(datasetName);
+    List<Example> examples = getAllExamples(dataset);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(new FileOutputStream(filename))))) {
+      out.writeUTF(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(fingerprint);
+      out.writeInt(examples.size());
+      BinaryStringTable strings = new BinaryStringTable();
+      for (Example ex : examples)
+        writeExample(out, strings, ex);
+      LogInfo.logs("Saved %d examples (fingerprint %s)", examples.size(), fingerprint);
+    } catch (IOException e) {
+      LogInfo.warning(e);
+      LogInfo.warnings("Cannot save compiled dataset to %s, but will continue anyway.", filename);
+    }
+    LogInfo.end_track();
+  }
+
+  private static void writeExample(DataOutputStream out, BinaryStringTable strings, Example ex) throws IOException {
+    if (ex.candidates == null)
+      LogInfo.fails("Example %s has no candidates", ex);
+    strings.write(out, getExampleKey(ex));
+    Map<CandidateGroup, Integer> groupIndices = new IdentityHashMap<>();
+    out.writeInt(ex.candidateGroups.size());
+    for (CandidateGroup group : ex.candidateGroups) {
+      groupIndices.put(group, groupIndices.size());
+      out.writeInt(group.predictedEntities.size());
+      for (String entity : group.predictedEntities)
+        strings.write(out, entity);
+      out.writeInt(ex.expectedAnswer == null ? -1 : ex.expectedAnswer.countCorrectEntities(group.predictedEntities));
+      group.features.writeBinary(out, strings);
+    }
+    out.writeInt(ex.candidates.size());
+    for (Candidate candidate : ex.candidates) {
+      out.writeInt(groupIndices.get(candidate.group));
+      List<PathEntry> path = candidate.pattern.getPath();
+      out.writeInt(path.size());
+      for (PathEntry entry : path) {
+        strings.write(out, entry.tag);
+        if (entry instanceof PathEntryWithRange) {
+          PathEntryWithRange rangeEntry = (PathEntryWithRange) entry;
+          out.writeByte(PATH_ENTRY_WITH_RANGE);
+          out.writeInt(rangeEntry.indexStart);
+          out.writeInt(rangeEntry.indexEnd);
+        } else {
+          out.writeByte(PATH_ENTRY);
+          out.writeInt(entry.index);
+        }
+      }
+      candidate.features.writeBinary(out, strings);
+    }
+  }
+
+  // ============================================================
+  // Load
+  // ============================================================
+
+  static class LoadedGroup {
+    List<String> predictedEntities;
+    int countCorrectEntities;
+    FeatureVector features;
+  }
+
+  static class LoadedCandidate {
+    int groupIndex;
+    List<PathEntry> path;
+    FeatureVector features;
+  }
+
+  static class LoadedExample {
+    final List<LoadedGroup> groups = new ArrayList<>();
+    final List<LoadedCandidate> candidates = new ArrayList<>();
+  }
+
+  /**
+   * Populate the candidates of all examples in the dataset from the file.
+   *
+   * @return false (and leave the dataset untouched) if the file does not exist, was compiled
+   *         with different extraction options, or does not match the examples of the dataset.
+   */
+  public static boolean load(String filename, String datasetName, Dataset dataset) {
+    if (!new File(filename).exists()) return false;
+    LogInfo.begin_track("Loading compiled dataset from %s", filename);
+    try {
+      String fingerprint = getFingerprint(datasetName);
+      List<Example> examples = getAllExamples(dataset);
+      List<LoadedExample> loadedExamples = new ArrayList<>();
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new GZIPInputStream(new FileInputStream(filename))))) {
+        if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+          LogInfo.warnings("%s is not a compiled dataset of version %d", filename, VERSION);
+          return false;
+        }
+        String fileFingerprint = in.readUTF();
+        if (!fingerprint.equals(fileFingerprint)) {
+          LogInfo.logs("Dataset or extraction options have changed (%s != %s)", fileFingerprint, fingerprint);
+          return false;
+        }
+        if (in.readInt() != examples.size()) {
+          LogInfo.warnings("Number of examples does not match the dataset");
+          return false;
+        }
+        BinaryStringTable strings = new BinaryStringTable();
+        for (Example ex : examples) {
+          String key = strings.read(in);
+          if (!key.equals(getExampleKey(ex))) {
+            LogInfo.warnings("Example %s does not match the dataset (found %s)", ex, key);
+            return false;
+          }
+          loadedExamples.add(readExample(in, strings));
+        }
+      }
+      for (int i = 0; i < examples.size(); i++)
+        populate(examples.get(i), loadedExamples.get(i));
+      LogInfo.logs("Loaded %d examples", examples.size());
+      return true;
+    } catch (IOException e) {
+      LogInfo.warning(e);
+      LogInfo.warnings("Cannot load compiled dataset from %s, but will continue anyway.", filename);
+      return false;
+    } finally {
+      LogInfo.end_track();
+    }
+  }
+
+  private static LoadedExample readExample(DataInputStream in, BinaryStringTable strings) throws IOException {
+    LoadedExample loaded = new LoadedExample();
+    int numGroups = in.readInt();
+    for (int i = 0; i < numGroups; i++) {
+      LoadedGroup group = new LoadedGroup();
+      int numEntities = in.readInt();
+      group.predictedEntities = new ArrayList<>(numEntities);
+      for (int j = 0; j < numEntities; j++)
+        group.predictedEntities.add(strings.read(in));
+      group.countCorrectEntities = in.readInt();
+      group.features = FeatureVector.readBinary(in, strings);
+      loaded.groups.add(group);
+    }
+    int numCandidates = in.readInt();
+    for (int i = 0; i < numCandidates; i++) {
+      LoadedCandidate candidate = new LoadedCandidate();
+      candidate.groupIndex = in.readInt();
+      int pathLength = in.readInt();
+      candidate.path = new ArrayList<>(pathLength);
+      for (int j = 0; j < pathLength; j++) {
+        String tag = strings.read(in);
+        if (in.readByte() == PATH_ENTRY_WITH_RANGE) {
+          int indexStart = in.readInt();
+          candidate.path.add(new PathEntryWithRange(tag, indexStart, in.readInt()));
+        } else {
+          int index = in.readInt();
+          candidate.path.add(index == -1 ? new PathEntry(tag) : new PathEntry(tag, index));
+        }
+      }
+      candidate.features = FeatureVector.readBinary(in, strings);
+      loaded.candidates.add(candidate);
+    }
+    return loaded;
+  }
+
+  private static void populate(Example ex, LoadedExample loaded) {
+    ex.tree = null;
+    ex.candidateGroups = new ArrayList<>();
+    ex.candidates = new ArrayList<>();
+    for (LoadedGroup loadedGroup : loaded.groups) {
+      CandidateGroup group = CandidateGroup.fromPredictedEntities(ex, loadedGroup.predictedEntities);
+      group.features = loadedGroup.features;
+      FeatureExtractor.featureExtractor.postProcess(group);
+      if (ex.expectedAnswer != null && loadedGroup.countCorrectEntities >= 0)
+        ex.expectedAnswer.putCountCorrectEntities(group.predictedEntities, loadedGroup.countCorrectEntities);
+      ex.candidateGroups.add(group);
+    }
+    for (LoadedCandidate loadedCandidate : loaded.candidates) {
+      TreePattern pattern = new TreePattern(null, loadedCandidate.path, Collections.<KNode>emptyList());
+      Candidate candidate = ex.candidateGroups.get(loadedCandidate.groupIndex).addCandidate(pattern);
+      candidate.features = loadedCandidate.features;
+      FeatureExtractor.featureExtractor.postProcess(candidate);
+      ex.candidates.add(candidate);
+    }
+  }
+}
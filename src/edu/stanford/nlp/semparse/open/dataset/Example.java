@@ -5,6 +5,8 @@ import java.util.List;
 import edu.stanford.nlp.semparse.open.ling.AveragedWordVector;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.model.feature.AncestorIndex;
+import edu.stanford.nlp.semparse.open.model.feature.EntityAnalysisTable;
 import edu.stanford.nlp.semparse.open.model.tree.KNode;
 
 /**
@@ -23,6 +25,8 @@ public class Example {
   public List<CandidateGroup> candidateGroups;
   public List<Candidate> candidates;  // Candidate predictions
   public AveragedWordVector averagedWordVector;
+  public EntityAnalysisTable entityAnalysisTable;
+  public AncestorIndex ancestorIndex;
 
   public Example(String phrase) {
     this(phrase, null);
@@ -41,4 +45,14 @@ public class Example {
     if (averagedWordVector == null)
       averagedWordVector = new AveragedWordVector(phrase);
   }
+  
+  public void initEntityAnalysisTable() {
+    if (entityAnalysisTable == null)
+      entityAnalysisTable = new EntityAnalysisTable(this);
+  }
+  
+  public void initAncestorIndex() {
+    if (ancestorIndex == null)
+      ancestorIndex = new AncestorIndex(this);
+  }
 }
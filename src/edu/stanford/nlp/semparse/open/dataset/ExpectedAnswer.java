@@ -120,6 +120,13 @@ public abstract class ExpectedAnswer {
     return count;
   }
   
+  /**
+   * Fill the cache with a count computed previously (e.g., loaded from a CompiledDataset)
+   */
+  public void putCountCorrectEntities(List<String> predictedEntities, int count) {
+    cachedCountCorrectEntities.put(predictedEntities, count);
+  }
+  
   /**
    * Count the number of correct entities (cached version)
    */
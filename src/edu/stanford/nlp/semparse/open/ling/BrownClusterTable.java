@@ -9,6 +9,7 @@ import java.nio.file.Paths;
 import java.util.*;
 
 
+import edu.stanford.nlp.semparse.open.util.StringIndexer;
 import fig.basic.LogInfo;
 import fig.basic.Option;
 
@@ -21,6 +22,16 @@ public class BrownClusterTable {
   public static Map<String, String> wordClusterMap;
   public static Map<String, Integer> wordFrequencyMap;
   
+  // Int-coded form: each distinct cluster gets an id, and its prefixes are precomputed.
+  // Prefix strings ("[length]prefix") are indexed in prefixIndexer.
+  private static Map<String, Integer> clusterIds;
+  private static String[][] clusterRawPrefixes;       // cluster id -> prefix for each DEFAULT_PREFIXES length
+  private static List<List<String>> clusterDefaultPrefixes;
+  private static int[][] clusterDefaultPrefixIds;
+  private static int[] prefixLengths;           // prefix id -> prefix length
+  private static long[] prefixFrequencies;      // prefix id -> total frequency of the words with the prefix
+  public static final StringIndexer prefixIndexer = new StringIndexer();
+  
   public static void initModels() {
     if (wordClusterMap != null || opts.brownClusterFilename == null || opts.brownClusterFilename.isEmpty()) return;
     Path dataPath = Paths.get(opts.brownClusterFilename);
@@ -37,6 +48,74 @@ public class BrownClusterTable {
     } catch (IOException e) {
       LogInfo.fails("Cannot load Brown cluster from %s", dataPath);
     }
+    indexClusters();
+  }
+  
+  private static void indexClusters() {
+    Map<String, Integer> ids = new HashMap<>();
+    List<String[]> rawPrefixes = new ArrayList<>();
+    List<List<String>> defaultPrefixes = new ArrayList<>();
+    List<int[]> defaultPrefixIds = new ArrayList<>();
+    for (String cluster : wordClusterMap.values()) {
+      if (ids.containsKey(cluster)) continue;
+      ids.put(cluster, ids.size());
+      String[] raw = new String[DEFAULT_PREFIXES.length];
+      List<String> prefixes = new ArrayList<>();
+      int[] prefixIds = new int[DEFAULT_PREFIXES.length];
+      for (int i = 0; i < DEFAULT_PREFIXES.length; i++) {
+        int length = DEFAULT_PREFIXES[i];
+        raw[i] = cluster.substring(0, Math.min(length, cluster.length())).intern();
+        String prefix = ("[" + length + "]" + raw[i]).intern();
+        prefixes.add(prefix);
+        prefixIds[i] = prefixIndexer.getIndex(prefix);
+      }
+      rawPrefixes.add(raw);
+      defaultPrefixes.add(Collections.unmodifiableList(prefixes));
+      defaultPrefixIds.add(prefixIds);
+    }
+    // Prefix statistics
+    int[] lengths = new int[prefixIndexer.size()];
+    long[] frequencies = new long[prefixIndexer.size()];
+    Arrays.fill(lengths, Integer.MAX_VALUE);
+    for (Map.Entry<String, String> entry : wordClusterMap.entrySet()) {
+      int[] prefixIds = defaultPrefixIds.get(ids.get(entry.getValue()));
+      for (int i = 0; i < prefixIds.length; i++) {
+        if (prefixIds[i] >= lengths.length) continue;
+        lengths[prefixIds[i]] = DEFAULT_PREFIXES[i];
+        frequencies[prefixIds[i]] += wordFrequencyMap.get(entry.getKey());
+      }
+    }
+    prefixLengths = lengths;
+    prefixFrequencies = frequencies;
+    clusterRawPrefixes = rawPrefixes.toArray(new String[0][]);
+    clusterDefaultPrefixes = defaultPrefixes;
+    clusterDefaultPrefixIds = defaultPrefixIds.toArray(new int[0][]);
+    clusterIds = ids;
+  }
+  
+  /**
+   * Return the length of the prefix with the given id in prefixIndexer.
+   * Strings that are not default cluster prefixes (e.g., raw tokens) have length Integer.MAX_VALUE.
+   */
+  public static int getPrefixLength(int prefixId) {
+    initModels();
+    if (prefixLengths == null || prefixId >= prefixLengths.length) return Integer.MAX_VALUE;
+    return prefixLengths[prefixId];
+  }
+  
+  /** Return the total corpus frequency of the words whose clusters have the given prefix */
+  public static long getPrefixFrequency(int prefixId) {
+    initModels();
+    if (prefixFrequencies == null || prefixId >= prefixFrequencies.length) return 0;
+    return prefixFrequencies[prefixId];
+  }
+  
+  /** Return the id of the cluster, or -1 if the cluster is not in the table */
+  public static int getClusterId(String cluster) {
+    initModels();
+    if (cluster == null || clusterIds == null) return -1;
+    Integer id = clusterIds.get(cluster);
+    return id == null ? -1 : id;
   }
   
   public static String getCluster(String word) {
@@ -48,16 +127,43 @@ public class BrownClusterTable {
     initModels();
     String answer = wordClusterMap.get(word);
     if (answer == null) return null;
-    return answer.substring(0, Math.min(length, answer.length()));
+    return getRawPrefix(answer, length);
+  }
+  
+  /** Same as cluster.substring(0, min(length, cluster.length())), precomputed for DEFAULT_PREFIXES */
+  private static String getRawPrefix(String cluster, int length) {
+    int id = getClusterId(cluster);
+    if (id != -1) {
+      for (int i = 0; i < DEFAULT_PREFIXES.length; i++)
+        if (DEFAULT_PREFIXES[i] == length) return clusterRawPrefixes[id][i];
+    }
+    return cluster.substring(0, Math.min(length, cluster.length()));
   }
   
   public static final int[] DEFAULT_PREFIXES = {4, 6, 10, 20};
   
+  /** Return the strings "[length]prefix" for the default prefix lengths (unmodifiable) */
   public static List<String> getDefaultClusterPrefixes(String cluster) {
+    if (cluster == null) return Collections.emptyList();
+    int id = getClusterId(cluster);
+    if (id != -1) return clusterDefaultPrefixes.get(id);
     List<String> answer = new ArrayList<>();
-    if (cluster != null)
-      for (int length : DEFAULT_PREFIXES)
-        answer.add("[" + length + "]" + cluster.substring(0, Math.min(length, cluster.length())));
+    for (int length : DEFAULT_PREFIXES)
+      answer.add("[" + length + "]" + cluster.substring(0, Math.min(length, cluster.length())));
+    return answer;
+  }
+  
+  private static final int[] NO_IDS = new int[0];
+  
+  /** Same as getDefaultClusterPrefixes, but return the ids of the prefixes in prefixIndexer */
+  public static int[] getDefaultClusterPrefixIds(String cluster) {
+    if (cluster == null) return NO_IDS;
+    int id = getClusterId(cluster);
+    if (id != -1) return clusterDefaultPrefixIds[id];
+    int[] answer = new int[DEFAULT_PREFIXES.length];
+    List<String> prefixes = getDefaultClusterPrefixes(cluster);
+    for (int i = 0; i < answer.length; i++)
+      answer[i] = prefixIndexer.getIndex(prefixes.get(i));
     return answer;
   }
   
@@ -68,8 +174,7 @@ public class BrownClusterTable {
   public static List<String> getDefaultClusterPrefixes(String cluster1, String cluster2) {
     List<String> answer = new ArrayList<>();
     for (int length : DEFAULT_PREFIXES) {
-      answer.add(cluster1.substring(0, Math.min(length, cluster1.length()))
-          + "|" + cluster2.substring(0, Math.min(length, cluster2.length())));
+      answer.add(getRawPrefix(cluster1, length) + "|" + getRawPrefix(cluster2, length));
     }
     return answer;
   }
@@ -55,6 +55,9 @@ public abstract class AdvancedWordVectorParams {
   
   public abstract double getScore(Candidate candidate);
   
+  /** A copy of the weights for prediction only (the gradient statistics are not copied) */
+  public abstract AdvancedWordVectorParams copy();
+  
   public abstract AdvancedWordVectorGradient createGradient();
   public abstract void update(AdvancedWordVectorGradient gradient);
   public abstract void applyL1Regularization(double cutoff);
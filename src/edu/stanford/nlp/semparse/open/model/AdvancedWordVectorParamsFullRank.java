@@ -24,6 +24,18 @@ public class AdvancedWordVectorParamsFullRank extends AdvancedWordVectorParams {
     initGradientStats();
   }
   
+  private AdvancedWordVectorParamsFullRank(AdvancedWordVectorParamsFullRank that) {
+    dim = that.dim;
+    weights = new double[dim][];
+    for (int i = 0; i < dim; i++)
+      weights[i] = that.weights[i].clone();
+  }
+  
+  @Override
+  public AdvancedWordVectorParams copy() {
+    return new AdvancedWordVectorParamsFullRank(this);
+  }
+  
   // ============================================================
   // Get score
   // ============================================================
@@ -43,6 +43,22 @@ public class AdvancedWordVectorParamsLowRank extends AdvancedWordVectorParams {
     initGradientStats();
   }
 
+  private AdvancedWordVectorParamsLowRank(AdvancedWordVectorParamsLowRank that) {
+    rank = that.rank;
+    dim = that.dim;
+    u = new double[rank][];
+    v = new double[rank][];
+    for (int i = 0; i < rank; i++) {
+      u[i] = that.u[i].clone();
+      v[i] = that.v[i].clone();
+    }
+  }
+
+  @Override
+  public AdvancedWordVectorParams copy() {
+    return new AdvancedWordVectorParamsLowRank(this);
+  }
+
   // ============================================================
   // Get score
   // ============================================================
@@ -0,0 +1,393 @@
+package edu.stanford.nlp.semparse.open.model;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
+import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.util.SparseAccumulator;
+
+/**
+ * The features of a list of candidates compiled into two sparse matrices (compressed sparse rows):
+ * one row per candidate group and one row per unique candidate. Only the features accepted by the
+ * feature matcher are kept, and the columns are numbered locally (see features).
+ *
+ * Candidates in the same group with identical features (and hence identical rewards) are collapsed
+ * into one unique candidate, which counts as multiplicity[u] entries of the softmax
+ * (see weightByMultiplicity). Scores, rewards, and gradient factors are indexed by unique candidate.
+ *
+ * The score of unique candidate u is (candidate row u) . w + (group row groupOf[u]) . w,
+ * where w is the weight vector restricted to the local features.
+ * The group scores are computed once for all candidates in the group.
+ */
+public class CompiledExample {
+  public final List<Candidate> candidates;
+  /** Candidate index --> unique candidate index */
+  public final int[] uniqueOf;
+  /** Unique candidate index --> first candidate with these features */
+  public final List<Candidate> uniqueCandidates;
+  /** Unique candidate index --> number of candidates */
+  final int[] multiplicity;
+  /** Local column index --> feature name */
+  public final String[] features;
+  /** Local column index --> feature id (see Params.featureIndexer) */
+  public final int[] featureIds;
+  /** Unique candidate index --> group row */
+  final int[] groupOf;
+  final int numGroups;
+  final int[] groupStart, groupColumns;
+  final double[] groupValues;
+  final int[] candidateStart, candidateColumns;
+  final double[] candidateValues;
+  /** Unique candidate index --> reward (null if the example has no expected answer) */
+  final double[] rewards;
+
+  /**
+   * @param collapse  whether to collapse candidates with identical features in the same group
+   */
+  public CompiledExample(List<Candidate> candidates, FeatureMatcher matcher, boolean collapse) {
+    this.candidates = candidates;
+    int n = candidates.size();
+    Map<String, Integer> columns = new HashMap<>();
+    List<String> features = new ArrayList<>();
+    Map<CandidateGroup, Integer> groupRows = new IdentityHashMap<>();
+    List<CandidateGroup> groups = new ArrayList<>();
+    int[] candidateGroupOf = new int[n];
+    for (int i = 0; i < n; i++) {
+      Candidate candidate = candidates.get(i);
+      Integer row = groupRows.get(candidate.group);
+      if (row == null) {
+        groupRows.put(candidate.group, row = groups.size());
+        groups.add(candidate.group);
+      }
+      candidateGroupOf[i] = row;
+    }
+    numGroups = groups.size();
+    // Group rows
+    Builder builder = new Builder(columns, features, matcher);
+    groupStart = new int[numGroups + 1];
+    for (int g = 0; g < numGroups; g++) {
+      builder.addRow(groups.get(g).features);
+      groupStart[g + 1] = builder.size();
+    }
+    groupColumns = builder.getColumns();
+    groupValues = builder.getValues();
+    // Candidate rows (one per unique candidate)
+    boolean hasRewards = n > 0 && candidates.get(0).ex.expectedAnswer != null;
+    builder = new Builder(columns, features, matcher);
+    uniqueOf = new int[n];
+    uniqueCandidates = new ArrayList<>();
+    List<Integer> uniqueStarts = new ArrayList<>(), uniqueGroups = new ArrayList<>(), counts = new ArrayList<>();
+    List<Double> uniqueRewards = new ArrayList<>();
+    Map<RowKey, Integer> uniqueIndices = new HashMap<>();
+    for (int i = 0; i < n; i++) {
+      Candidate candidate = candidates.get(i);
+      int start = builder.size();
+      builder.addRow(candidate.features);
+      double reward = hasRewards ? candidate.getReward() : 0;
+      RowKey key = collapse ? builder.getRowKey(start, candidateGroupOf[i], reward) : null;
+      Integer u = collapse ? uniqueIndices.get(key) : null;
+      if (u != null) {
+        // Same features as an earlier candidate: discard the row
+        builder.truncate(start);
+        counts.set(u, counts.get(u) + 1);
+      } else {
+        u = uniqueCandidates.size();
+        if (collapse) uniqueIndices.put(key, u);
+        uniqueCandidates.add(candidate);
+        uniqueStarts.add(start);
+        uniqueGroups.add(candidateGroupOf[i]);
+        counts.add(1);
+        uniqueRewards.add(reward);
+      }
+      uniqueOf[i] = u;
+    }
+    int numUnique = uniqueCandidates.size();
+    candidateStart = new int[numUnique + 1];
+    groupOf = new int[numUnique];
+    multiplicity = new int[numUnique];
+    rewards = hasRewards ? new double[numUnique] : null;
+    for (int u = 0; u < numUnique; u++) {
+      candidateStart[u] = uniqueStarts.get(u);
+      groupOf[u] = uniqueGroups.get(u);
+      multiplicity[u] = counts.get(u);
+      if (hasRewards) rewards[u] = uniqueRewards.get(u);
+    }
+    candidateStart[numUnique] = builder.size();
+    candidateColumns = builder.getColumns();
+    candidateValues = builder.getValues();
+    this.features = features.toArray(new String[features.size()]);
+    this.featureIds = new int[this.features.length];
+    for (int j = 0; j < featureIds.length; j++)
+      featureIds[j] = Params.featureIndexer.getIndex(this.features[j]);
+  }
+
+  /**
+   * Restrict to the unique candidates with the given indices (and their groups).
+   * The candidates of the restricted example are the kept unique candidates.
+   */
+  public CompiledExample restrict(int[] kept) {
+    return new CompiledExample(this, kept);
+  }
+
+  private CompiledExample(CompiledExample source, int[] kept) {
+    features = source.features;
+    featureIds = source.featureIds;
+    int n = kept.length;
+    uniqueOf = new int[n];
+    uniqueCandidates = new ArrayList<>(n);
+    multiplicity = new int[n];
+    rewards = source.rewards == null ? null : new double[n];
+    groupOf = new int[n];
+    candidateStart = new int[n + 1];
+    int[] groupRows = new int[source.numGroups];
+    Arrays.fill(groupRows, -1);
+    List<Integer> groups = new ArrayList<>();
+    int numCandidateEntries = 0;
+    for (int k = 0; k < n; k++) {
+      int u = kept[k];
+      uniqueOf[k] = k;
+      uniqueCandidates.add(source.uniqueCandidates.get(u));
+      multiplicity[k] = source.multiplicity[u];
+      if (rewards != null) rewards[k] = source.rewards[u];
+      int g = source.groupOf[u];
+      if (groupRows[g] < 0) {
+        groupRows[g] = groups.size();
+        groups.add(g);
+      }
+      groupOf[k] = groupRows[g];
+      numCandidateEntries += source.candidateStart[u + 1] - source.candidateStart[u];
+      candidateStart[k + 1] = numCandidateEntries;
+    }
+    candidates = uniqueCandidates;
+    candidateColumns = new int[numCandidateEntries];
+    candidateValues = new double[numCandidateEntries];
+    for (int k = 0; k < n; k++) {
+      int u = kept[k], length = candidateStart[k + 1] - candidateStart[k];
+      System.arraycopy(source.candidateColumns, source.candidateStart[u], candidateColumns, candidateStart[k], length);
+      System.arraycopy(source.candidateValues, source.candidateStart[u], candidateValues, candidateStart[k], length);
+    }
+    numGroups = groups.size();
+    groupStart = new int[numGroups + 1];
+    for (int r = 0; r < numGroups; r++) {
+      int g = groups.get(r);
+      groupStart[r + 1] = groupStart[r] + source.groupStart[g + 1] - source.groupStart[g];
+    }
+    groupColumns = new int[groupStart[numGroups]];
+    groupValues = new double[groupStart[numGroups]];
+    for (int r = 0; r < numGroups; r++) {
+      int g = groups.get(r), length = groupStart[r + 1] - groupStart[r];
+      System.arraycopy(source.groupColumns, source.groupStart[g], groupColumns, groupStart[r], length);
+      System.arraycopy(source.groupValues, source.groupStart[g], groupValues, groupStart[r], length);
+    }
+  }
+
+  public int size() {
+    return candidates.size();
+  }
+
+  public int numUnique() {
+    return uniqueCandidates.size();
+  }
+
+  public int numFeatures() {
+    return features.length;
+  }
+
+  /** Number of nonzero entries in both matrices */
+  public int numEntries() {
+    return groupColumns.length + candidateColumns.length;
+  }
+
+  /** Accumulates the rows of a sparse matrix, merging duplicate features within each row */
+  static class Builder {
+    final Map<String, Integer> columns;
+    final List<String> features;
+    final FeatureMatcher matcher;
+    final Map<String, Double> row = new HashMap<>();
+    int[] columnArray = new int[64];
+    double[] valueArray = new double[64];
+    int size = 0;
+
+    Builder(Map<String, Integer> columns, List<String> features, FeatureMatcher matcher) {
+      this.columns = columns;
+      this.features = features;
+      this.matcher = matcher;
+    }
+
+    void addRow(FeatureVector v) {
+      row.clear();
+      v.increment(1, row, matcher);
+      if (size + row.size() > columnArray.length) {
+        int capacity = Math.max(columnArray.length * 2, size + row.size());
+        columnArray = Arrays.copyOf(columnArray, capacity);
+        valueArray = Arrays.copyOf(valueArray, capacity);
+      }
+      for (Map.Entry<String, Double> entry : row.entrySet()) {
+        Integer column = columns.get(entry.getKey());
+        if (column == null) {
+          columns.put(entry.getKey(), column = features.size());
+          features.add(entry.getKey());
+        }
+        columnArray[size] = column;
+        valueArray[size] = entry.getValue();
+        size++;
+      }
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] getColumns() {
+      return Arrays.copyOf(columnArray, size);
+    }
+
+    double[] getValues() {
+      return Arrays.copyOf(valueArray, size);
+    }
+
+    /** Discard the entries from index size onward */
+    void truncate(int size) {
+      this.size = size;
+    }
+
+    /** Key of the row that starts at index start (the last row added) */
+    RowKey getRowKey(int start, int group, double reward) {
+      Integer[] order = new Integer[size - start];
+      for (int k = 0; k < order.length; k++)
+        order[k] = start + k;
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Integer.compare(columnArray[a], columnArray[b]);
+        }
+      });
+      int[] keyColumns = new int[order.length];
+      double[] keyValues = new double[order.length];
+      for (int k = 0; k < order.length; k++) {
+        keyColumns[k] = columnArray[order[k]];
+        keyValues[k] = valueArray[order[k]];
+      }
+      return new RowKey(group, reward, keyColumns, keyValues);
+    }
+  }
+
+  /** Group, reward, and features (sorted by column) of a candidate */
+  static class RowKey {
+    final int group;
+    final double reward;
+    final int[] columns;
+    final double[] values;
+    final int hashCode;
+
+    RowKey(int group, double reward, int[] columns, double[] values) {
+      this.group = group;
+      this.reward = reward;
+      this.columns = columns;
+      this.values = values;
+      hashCode = Objects.hash(group, reward, Arrays.hashCode(columns), Arrays.hashCode(values));
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RowKey)) return false;
+      RowKey that = (RowKey) o;
+      return group == that.group && Double.compare(reward, that.reward) == 0
+          && Arrays.equals(columns, that.columns) && Arrays.equals(values, that.values);
+    }
+  }
+
+  // ============================================================
+  // Score
+  // ============================================================
+
+  /** Return the weights of the local features */
+  public double[] getWeights(Params params) {
+    double[] weights = new double[features.length];
+    for (int j = 0; j < featureIds.length; j++)
+      weights[j] = params.getWeight(featureIds[j]);
+    return weights;
+  }
+
+  /** Return the scores of all unique candidates (without the advanced word vector scores) */
+  public double[] getScores(Params params) {
+    return getLocalScores(getWeights(params));
+  }
+
+  /** Same as getScores(params) with the weights given as an array indexed by feature id */
+  public double[] getScores(double[] globalWeights) {
+    double[] weights = new double[features.length];
+    for (int j = 0; j < featureIds.length; j++)
+      weights[j] = globalWeights[featureIds[j]];
+    return getLocalScores(weights);
+  }
+
+  private double[] getLocalScores(double[] weights) {
+    double[] groupScores = new double[numGroups];
+    for (int g = 0; g < numGroups; g++)
+      groupScores[g] = dotProduct(groupStart[g], groupStart[g + 1], groupColumns, groupValues, weights);
+    double[] scores = new double[uniqueCandidates.size()];
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = dotProduct(candidateStart[i], candidateStart[i + 1], candidateColumns, candidateValues, weights);
+      scores[i] += groupScores[groupOf[i]];
+    }
+    return scores;
+  }
+
+  private static double dotProduct(int start, int end, int[] columns, double[] values, double[] weights) {
+    double sum = 0;
+    for (int k = start; k < end; k++)
+      sum += weights[columns[k]] * values[k];
+    return sum;
+  }
+
+  /** Convert the scores of the unique candidates into the scores of all candidates */
+  public double[] expand(double[] uniqueScores) {
+    double[] scores = new double[candidates.size()];
+    for (int i = 0; i < scores.length; i++)
+      scores[i] = uniqueScores[uniqueOf[i]];
+    return scores;
+  }
+
+  /**
+   * Return scores[u] + log(multiplicity[u]): the softmax over the unique candidates with these scores
+   * is the same as the softmax over all candidates, with the probabilities of identical candidates summed.
+   */
+  public double[] weightByMultiplicity(double[] scores) {
+    double[] weighted = new double[scores.length];
+    for (int u = 0; u < scores.length; u++)
+      weighted[u] = multiplicity[u] == 1 ? scores[u] : scores[u] + Math.log(multiplicity[u]);
+    return weighted;
+  }
+
+  // ============================================================
+  // Gradient
+  // ============================================================
+
+  /**
+   * Add sum_u factors[u] * (features of unique candidate u) to the accumulator, indexed by feature id.
+   * The gradient of each group is accumulated once for all candidates in the group.
+   * Every feature of the example is touched.
+   */
+  public void addGradient(double[] factors, SparseAccumulator gradient) {
+    double[] groupFactors = new double[numGroups];
+    for (int i = 0; i < factors.length; i++) {
+      groupFactors[groupOf[i]] += factors[i];
+      for (int k = candidateStart[i]; k < candidateStart[i + 1]; k++)
+        gradient.add(featureIds[candidateColumns[k]], factors[i] * candidateValues[k]);
+    }
+    for (int g = 0; g < numGroups; g++) {
+      for (int k = groupStart[g]; k < groupStart[g + 1]; k++)
+        gradient.add(featureIds[groupColumns[k]], groupFactors[g] * groupValues[k]);
+    }
+  }
+
+  public double getReward(int i) {
+    return rewards[i];
+  }
+}
@@ -0,0 +1,95 @@
+package edu.stanford.nlp.semparse.open.model;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A conjunction of features with a prefix (e.g., the query type), applied virtually.
+ *
+ * A FeatureVector created by FeatureVector.conjoin(base, conjunction) represents the features
+ *   "ALL f"      with value x            (if f is not conjoined, or if keepOriginal is true)
+ *   "[prefix] f" with value x * scale    (if f is conjoined)
+ * for each feature f with value x in the base vector. The names are memoized per prefix,
+ * and whether f is conjoined is decided once per feature, so no string is built per vector.
+ */
+public class FeatureConjunction {
+  public static final String ORIGINAL_PREFIX = "ALL";
+
+  public final String prefix;
+  public final boolean keepOriginal;
+  public final double scale;
+  private final FeatureMatcher matcher;
+  private final Map<String, Boolean> decisions;
+  private final ConcurrentMap<String, String> originalNames, conjoinedNames;
+
+  /**
+   * @param matcher     features to conjoin (null = all features)
+   * @param decisions   cache of matcher decisions (may be shared between conjunctions with the same matcher)
+   * @param names       memo of the names, indexed by prefix (shared between conjunctions; see newNameMemo)
+   */
+  public FeatureConjunction(String prefix, FeatureMatcher matcher, Map<String, Boolean> decisions,
+      ConcurrentMap<String, ConcurrentMap<String, String>> names, boolean keepOriginal, double scale) {
+    this.prefix = prefix;
+    this.matcher = matcher;
+    this.decisions = decisions;
+    this.keepOriginal = keepOriginal;
+    this.scale = scale;
+    this.originalNames = getNames(names, ORIGINAL_PREFIX);
+    this.conjoinedNames = getNames(names, prefix);
+  }
+
+  /** Whether feature f is conjoined with the prefix */
+  public boolean isConjoined(String f) {
+    if (matcher == null) return true;
+    Boolean decision = decisions.get(f);
+    if (decision == null) {
+      decision = matcher.matches(f);
+      decisions.put(f, decision);
+    }
+    return decision;
+  }
+
+  /** Whether "ALL f" is present */
+  public boolean isOriginalKept(String f) {
+    return keepOriginal || !isConjoined(f);
+  }
+
+  public String getOriginalName(String f) {
+    return getName(originalNames, ORIGINAL_PREFIX, f);
+  }
+
+  public String getConjoinedName(String f) {
+    return getName(conjoinedNames, prefix, f);
+  }
+
+  // ============================================================
+  // Name memo
+  // ============================================================
+
+  /** Return an empty memo of the names for the conjunctions of one owner */
+  public static ConcurrentMap<String, ConcurrentMap<String, String>> newNameMemo() {
+    return new ConcurrentHashMap<>();
+  }
+
+  private static ConcurrentMap<String, String> getNames(
+      ConcurrentMap<String, ConcurrentMap<String, String>> namesByPrefix, String prefix) {
+    ConcurrentMap<String, String> names = namesByPrefix.get(prefix);
+    if (names == null) {
+      names = new ConcurrentHashMap<>();
+      ConcurrentMap<String, String> existing = namesByPrefix.putIfAbsent(prefix, names);
+      if (existing != null) names = existing;
+    }
+    return names;
+  }
+
+  private static String getName(ConcurrentMap<String, String> names, String prefix, String f) {
+    String name = names.get(f);
+    if (name == null) {
+      name = (prefix + " " + f).intern();
+      String existing = names.putIfAbsent(f, name);
+      if (existing != null) name = existing;
+    }
+    return name;
+  }
+}
@@ -1,5 +1,8 @@
 package edu.stanford.nlp.semparse.open.model;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -9,6 +12,7 @@ import java.util.Map;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 
+import edu.stanford.nlp.semparse.open.util.BinaryStringTable;
 import edu.stanford.nlp.semparse.open.util.StringDoubleArrayList;
 import edu.stanford.nlp.semparse.open.util.StringDoublePair;
 import fig.basic.Fmt;
@@ -28,6 +32,9 @@ public class FeatureVector {
   private List<String> indicatorFeatures;
   // General features
   private StringDoubleArrayList generalFeatures;
+  // Features of conjoinedBase conjoined virtually (see FeatureConjunction)
+  private FeatureVector conjoinedBase;
+  private FeatureConjunction conjunction;
   
   // ============================================================
   // Add features
@@ -66,6 +73,7 @@ public class FeatureVector {
 
   public void add(FeatureVector that) { add(that, AllFeatureMatcher.matcher); }
   public void add(FeatureVector that, FeatureMatcher matcher) {
+    if (that.conjunction != null) that.addConjoinedTo(this, matcher);
     if (that.indicatorFeatures != null) {
       if (indicatorFeatures == null) indicatorFeatures = new ArrayList<String>();
       for (String f : that.indicatorFeatures)
@@ -82,6 +90,7 @@ public class FeatureVector {
   
   public void addConjoin(FeatureVector that, String prefix) { addConjoin(that, prefix, AllFeatureMatcher.matcher); }
   public void addConjoin(FeatureVector that, String prefix, FeatureMatcher matcher) {
+    if (that.conjunction != null) that = materialize(that);
     if (that.indicatorFeatures != null) {
       if (indicatorFeatures == null) indicatorFeatures = new ArrayList<String>();
       for (String f : that.indicatorFeatures)
@@ -98,6 +107,7 @@ public class FeatureVector {
   
   public void addConjoin(FeatureVector that, String prefix, double scale) { addConjoin(that, prefix, AllFeatureMatcher.matcher, scale); }
   public void addConjoin(FeatureVector that, String prefix, FeatureMatcher matcher, double scale) {
+    if (that.conjunction != null) that = materialize(that);
     if (that.indicatorFeatures != null) {
       if (generalFeatures == null) generalFeatures = new StringDoubleArrayList();
       for (String f : that.indicatorFeatures)
@@ -112,6 +122,107 @@ public class FeatureVector {
     }
   }
   
+  /**
+   * Return a vector with the features of base conjoined according to the conjunction.
+   * The conjoined features are not materialized, so base must not be modified afterward.
+   */
+  public static FeatureVector conjoin(FeatureVector base, FeatureConjunction conjunction) {
+    if (base.conjunction != null) base = materialize(base);
+    FeatureVector v = new FeatureVector();
+    v.conjoinedBase = base;
+    v.conjunction = conjunction;
+    return v;
+  }
+  
+  /** Return a copy of the vector where the virtually conjoined features are actual features */
+  private static FeatureVector materialize(FeatureVector that) {
+    FeatureVector v = new FeatureVector();
+    v.add(that);
+    return v;
+  }
+  
+  private void addConjoinedTo(FeatureVector v, FeatureMatcher matcher) {
+    FeatureVector base = conjoinedBase;
+    if (base.indicatorFeatures != null) {
+      for (String f : base.indicatorFeatures) {
+        if (conjunction.isOriginalKept(f)) {
+          String g = conjunction.getOriginalName(f);
+          if (matcher.matches(g)) v.add(g);
+        }
+        if (conjunction.isConjoined(f)) {
+          String g = conjunction.getConjoinedName(f);
+          if (matcher.matches(g)) {
+            if (conjunction.scale == 1.0) v.add(g);
+            else v.add(g, conjunction.scale);
+          }
+        }
+      }
+    }
+    if (base.generalFeatures != null) {
+      for (StringDoublePair pair : base.generalFeatures) {
+        String f = pair.getFirst();
+        if (conjunction.isOriginalKept(f)) {
+          String g = conjunction.getOriginalName(f);
+          if (matcher.matches(g)) v.add(g, pair.getSecond());
+        }
+        if (conjunction.isConjoined(f)) {
+          String g = conjunction.getConjoinedName(f);
+          if (matcher.matches(g)) v.add(g, pair.getSecond() * conjunction.scale);
+        }
+      }
+    }
+  }
+  
+  private double conjoinedDotProduct(Params params, FeatureMatcher matcher) {
+    double sum = 0;
+    FeatureVector base = conjoinedBase;
+    if (base.indicatorFeatures != null) {
+      for (String f : base.indicatorFeatures)
+        sum += conjoinedDotProduct(params, matcher, f, 1);
+    }
+    if (base.generalFeatures != null) {
+      for (StringDoublePair pair : base.generalFeatures)
+        sum += conjoinedDotProduct(params, matcher, pair.getFirst(), pair.getSecond());
+    }
+    return sum;
+  }
+  
+  private double conjoinedDotProduct(Params params, FeatureMatcher matcher, String f, double value) {
+    double sum = 0;
+    if (conjunction.isOriginalKept(f)) {
+      String g = conjunction.getOriginalName(f);
+      if (matcher.matches(g)) sum += params.getWeight(g) * value;
+    }
+    if (conjunction.isConjoined(f)) {
+      String g = conjunction.getConjoinedName(f);
+      if (matcher.matches(g)) sum += params.getWeight(g) * value * conjunction.scale;
+    }
+    return sum;
+  }
+  
+  private void conjoinedIncrement(double factor, Map<String, Double> map, FeatureMatcher matcher) {
+    FeatureVector base = conjoinedBase;
+    if (base.indicatorFeatures != null) {
+      for (String f : base.indicatorFeatures)
+        conjoinedIncrement(factor, map, matcher, f, 1);
+    }
+    if (base.generalFeatures != null) {
+      for (StringDoublePair pair : base.generalFeatures)
+        conjoinedIncrement(factor, map, matcher, pair.getFirst(), pair.getSecond());
+    }
+  }
+  
+  private void conjoinedIncrement(double factor, Map<String, Double> map, FeatureMatcher matcher, String f, double value) {
+    if (conjunction.isOriginalKept(f)) {
+      String g = conjunction.getOriginalName(f);
+      if (matcher.matches(g)) MapUtils.incr(map, g, factor * value);
+    }
+    if (conjunction.isConjoined(f)) {
+      String g = conjunction.getConjoinedName(f);
+      if (matcher.matches(g)) MapUtils.incr(map, g, factor * value * conjunction.scale);
+    }
+  }
+  
   // ============================================================
   // Dot product
   // ============================================================
@@ -119,6 +230,8 @@ public class FeatureVector {
   // Return the dot product between this feature vector and the weight vector (parameters).
   public double dotProduct(Params params) {
     double sum = 0;
+    if (conjunction != null)
+      sum += conjoinedDotProduct(params, AllFeatureMatcher.matcher);
     if (indicatorFeatures != null) {
       for (String f : indicatorFeatures)
         sum += params.getWeight(f);
@@ -131,6 +244,8 @@ public class FeatureVector {
   }
   public double dotProduct(Params params, FeatureMatcher matcher) {
     double sum = 0;
+    if (conjunction != null)
+      sum += conjoinedDotProduct(params, matcher);
     if (indicatorFeatures != null) {
       for (String f : indicatorFeatures)
         if (matcher.matches(f))
@@ -150,6 +265,8 @@ public class FeatureVector {
 
   // Increment |map| by a factor times this feature vector.
   public void increment(double factor, Map<String, Double> map) {
+    if (conjunction != null)
+      conjoinedIncrement(factor, map, AllFeatureMatcher.matcher);
     if (indicatorFeatures != null) {
       for (String feature : indicatorFeatures)
         MapUtils.incr(map, feature, factor);
@@ -160,6 +277,8 @@ public class FeatureVector {
     }
   }
   public void increment(double factor, Map<String, Double> map, FeatureMatcher matcher) {
+    if (conjunction != null)
+      conjoinedIncrement(factor, map, matcher);
     if (indicatorFeatures != null) {
       for (String feature : indicatorFeatures)
         if (matcher.matches(feature))
@@ -172,6 +291,68 @@ public class FeatureVector {
     }
   }
   
+  // ============================================================
+  // Statistics
+  // ============================================================
+
+  /** Number of features, counting duplicates (virtually conjoined features are not materialized) */
+  public int size() {
+    int size = (indicatorFeatures == null ? 0 : indicatorFeatures.size())
+        + (generalFeatures == null ? 0 : generalFeatures.size());
+    if (conjunction != null) {
+      FeatureVector base = conjoinedBase;
+      if (base.indicatorFeatures != null) {
+        for (String f : base.indicatorFeatures)
+          size += conjoinedCount(f);
+      }
+      if (base.generalFeatures != null) {
+        for (StringDoublePair pair : base.generalFeatures)
+          size += conjoinedCount(pair.getFirst());
+      }
+    }
+    return size;
+  }
+  
+  /** Number of features that base feature f becomes under the conjunction */
+  private int conjoinedCount(String f) {
+    return (conjunction.isOriginalKept(f) ? 1 : 0) + (conjunction.isConjoined(f) ? 1 : 0);
+  }
+
+  /** Increment |counts| by the number of features (counting duplicates) in each domain */
+  public void incrementDomainCounts(Map<String, Integer> counts) {
+    if (conjunction != null) {
+      FeatureVector base = conjoinedBase;
+      if (base.indicatorFeatures != null) {
+        for (String f : base.indicatorFeatures)
+          incrementConjoinedDomainCounts(counts, f);
+      }
+      if (base.generalFeatures != null) {
+        for (StringDoublePair pair : base.generalFeatures)
+          incrementConjoinedDomainCounts(counts, pair.getFirst());
+      }
+    }
+    if (indicatorFeatures != null) {
+      for (String feature : indicatorFeatures)
+        MapUtils.incr(counts, getDomain(feature));
+    }
+    if (generalFeatures != null) {
+      for (StringDoublePair pair : generalFeatures)
+        MapUtils.incr(counts, getDomain(pair.getFirst()));
+    }
+  }
+
+  private void incrementConjoinedDomainCounts(Map<String, Integer> counts, String f) {
+    if (conjunction.isOriginalKept(f))
+      MapUtils.incr(counts, getDomain(conjunction.getOriginalName(f)));
+    if (conjunction.isConjoined(f))
+      MapUtils.incr(counts, getDomain(conjunction.getConjoinedName(f)));
+  }
+
+  public static String getDomain(String feature) {
+    int index = feature.indexOf(" :: ");
+    return index == -1 ? feature : feature.substring(0, index);
+  }
+
   // ============================================================
   // Persistence
   // ============================================================
@@ -183,6 +364,48 @@ public class FeatureVector {
     return map;
   }
 
+  /**
+   * Write the features in binary. A virtually conjoined vector is written as its base vector,
+   * so the post-processors have to be applied again after reading.
+   */
+  public void writeBinary(DataOutput out, BinaryStringTable strings) throws IOException {
+    if (conjunction != null) {
+      conjoinedBase.writeBinary(out, strings);
+      return;
+    }
+    out.writeInt(indicatorFeatures == null ? -1 : indicatorFeatures.size());
+    if (indicatorFeatures != null) {
+      for (String feature : indicatorFeatures)
+        strings.write(out, feature);
+    }
+    out.writeInt(generalFeatures == null ? -1 : generalFeatures.size());
+    if (generalFeatures != null) {
+      for (StringDoublePair pair : generalFeatures) {
+        strings.write(out, pair.getFirst());
+        out.writeDouble(pair.getSecond());
+      }
+    }
+  }
+
+  public static FeatureVector readBinary(DataInput in, BinaryStringTable strings) throws IOException {
+    FeatureVector fv = new FeatureVector();
+    int numIndicators = in.readInt();
+    if (numIndicators >= 0) {
+      fv.indicatorFeatures = new ArrayList<String>(numIndicators);
+      for (int i = 0; i < numIndicators; i++)
+        fv.indicatorFeatures.add(strings.read(in));
+    }
+    int numGenerals = in.readInt();
+    if (numGenerals >= 0) {
+      fv.generalFeatures = new StringDoubleArrayList(Math.max(numGenerals, 1));
+      for (int i = 0; i < numGenerals; i++) {
+        String feature = strings.read(in);
+        fv.generalFeatures.add(feature, in.readDouble());
+      }
+    }
+    return fv;
+  }
+
   @JsonCreator
   public static FeatureVector fromMap(Map<String, Double> m) {
     // TODO: Encoding is lossy.  We guess that value of 1 means indicator, but we could be wrong.
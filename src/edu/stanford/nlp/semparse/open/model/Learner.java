@@ -2,6 +2,7 @@ package edu.stanford.nlp.semparse.open.model;
 
 import java.util.List;
 
+import edu.stanford.nlp.semparse.open.core.eval.CandidateStatistics;
 import edu.stanford.nlp.semparse.open.core.eval.IterativeTester;
 import edu.stanford.nlp.semparse.open.dataset.Dataset;
 import edu.stanford.nlp.semparse.open.dataset.Example;
@@ -25,6 +26,19 @@ public interface Learner {
   
   public List<Pair<Candidate, Double>> getRankedCandidates(Example example);
   
+  /**
+   * Return the statistics of the top k candidates, in the same order as getRankedCandidates.
+   */
+  public List<CandidateStatistics> getTopCandidates(Example example, int k);
+  
+  /**
+   * Return a learner that predicts with a copy of the current parameters, so that it can be used
+   * while training continues (see IterativeTester). Return null if this is not supported.
+   * 
+   * The snapshot will predict on the given examples, whose candidates must already be extracted.
+   */
+  public Learner getPredictionSnapshot(List<Example> examples);
+  
   // ============================================================
   // Learn
   // ============================================================
@@ -2,6 +2,7 @@ package edu.stanford.nlp.semparse.open.model;
 
 import java.util.*;
 
+import edu.stanford.nlp.semparse.open.core.eval.CandidateStatistics;
 import edu.stanford.nlp.semparse.open.core.eval.IterativeTester;
 import edu.stanford.nlp.semparse.open.dataset.Dataset;
 import edu.stanford.nlp.semparse.open.dataset.Example;
@@ -90,6 +91,18 @@ public class LearnerBaseline implements Learner {
     return answer;
   }
   
+  @Override
+  public List<CandidateStatistics> getTopCandidates(Example example, int k) {
+    double[] scores = new double[example.candidates.size()];
+    for (int i = 0; i < scores.length; i++)
+      scores[i] = getScore(example.candidates.get(i));
+    return CandidateStatistics.getTopCandidateStats(example.candidates, scores, k);
+  }
+  
+  @Override
+  public Learner getPredictionSnapshot(List<Example> examples) {
+    return null;
+  }
   
   protected double getScore(Candidate candidate) {
     List<String> suffix = getPathSuffix(candidate);
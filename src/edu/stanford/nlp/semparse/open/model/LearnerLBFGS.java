@@ -0,0 +1,188 @@
+package edu.stanford.nlp.semparse.open.model;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.stanford.nlp.semparse.open.dataset.Example;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureType;
+import edu.stanford.nlp.semparse.open.util.LBFGSMinimizer;
+import edu.stanford.nlp.semparse.open.util.Parallelizer;
+import edu.stanford.nlp.semparse.open.util.SparseAccumulator;
+import fig.basic.Fmt;
+import fig.basic.LogInfo;
+import fig.basic.Option;
+import fig.exec.Execution;
+
+/**
+ * Maximum entropy model trained with a batch optimizer (L-BFGS, or OWL-QN when lambda > 0)
+ * instead of stochastic gradient descent. Prediction and persistence are the same as LearnerMaxEnt.
+ *
+ * The objective to be minimized is
+ *    - (1/N) sum_x log-likelihood(x) + (beta/2) |w|_2^2 + (lambda/N) |w|_1
+ * where N is the number of training examples and beta, lambda are from LearnerMaxEnt.Options.
+ * This is the objective that one SGD pass of LearnerMaxEnt approximately optimizes (divided by N).
+ * The objective and its gradient are computed on Parallelizer.getNumThreads() threads.
+ */
+public class LearnerLBFGS extends LearnerMaxEnt {
+  public static class Options {
+    @Option(gloss = "Maximum number of L-BFGS iterations")
+    public int maxIters = 100;
+    @Option(gloss = "Number of past updates used to approximate the Hessian")
+    public int historySize = 10;
+    @Option(gloss = "Stop when the relative decrease of the objective in one iteration is below this")
+    public double tolerance = 1e-5;
+    @Option(gloss = "Run the iterative tester every this many iterations (0 = only at the end)")
+    public int testFrequency = 10;
+  }
+  public static Options opts = new Options();
+
+  /**
+   * Minimize the objective with L-BFGS. (Overrides the SGD loop of LearnerMaxEnt.)
+   */
+  @Override
+  protected void stochasticGradientDescent(Collection<Example> examples, FeatureMatcher featureMatcher) {
+    if (FeatureType.usingAdvancedWordVectorFeature())
+      LogInfo.fails("LearnerLBFGS does not support advanced word vector features");
+    if (!compiledTrainExamples.keySet().containsAll(examples))
+      LogInfo.fails("LearnerLBFGS requires compiled examples (compileExamples = true, initWeightsRandomly = false)");
+    params = new Params();
+    advancedWordVectorParams = null;
+    trainIter = 1;
+
+    Objective objective = new Objective(new ArrayList<>(examples));
+    double[] x = new double[objective.numFeatures()];
+    LBFGSMinimizer minimizer = new LBFGSMinimizer(opts.historySize, opts.maxIters, opts.tolerance,
+        LearnerMaxEnt.opts.lambda / examples.size());
+    LogInfo.begin_track("L-BFGS on %d examples, %d features", examples.size(), x.length);
+    // One thread pool for all evaluations of the objective
+    objective.executor = (objective.numThreads == 1) ? null : Executors.newFixedThreadPool(objective.numThreads);
+    double value;
+    try {
+      value = minimizer.minimize(objective, x);
+    } finally {
+      if (objective.executor != null) objective.executor.shutdown();
+      objective.executor = null;
+    }
+    LogInfo.end_track();
+    if (!beVeryQuiet) Execution.putOutput("objective", value);
+    objective.setParams(x);
+
+    if (iterativeTester != null) {
+      iterativeTester.message = "Final (objective = " + Fmt.D(value) + ")";
+      iterativeTester.run();
+      iterativeTester.waitForResults();
+      if (!beVeryQuiet) iterativeTester.summarize();
+    }
+  }
+
+  /**
+   * The objective over the features of the compiled training examples (numbered compactly).
+   */
+  class Objective implements LBFGSMinimizer.Function {
+    final List<Example> examples;
+    final int numThreads;
+    // Compact index --> feature id, and feature id --> compact index (-1 if absent)
+    final int[] featureIds, compactIndices;
+    // Weights indexed by feature id
+    final double[] globalWeights;
+    final List<SparseAccumulator> gradients = new ArrayList<>();
+    final double[] logLikelihoods;
+    // Runs the chunks of valueAt (null = run on the calling thread)
+    ExecutorService executor;
+
+    Objective(List<Example> examples) {
+      this.examples = examples;
+      numThreads = Math.max(1, Math.min(Parallelizer.getNumThreads(), examples.size()));
+      int numGlobalFeatures = Params.featureIndexer.size();
+      compactIndices = new int[numGlobalFeatures];
+      Arrays.fill(compactIndices, -1);
+      int numFeatures = 0;
+      for (Example example : examples) {
+        for (int id : compiledTrainExamples.get(example).featureIds)
+          if (compactIndices[id] < 0) compactIndices[id] = numFeatures++;
+      }
+      featureIds = new int[numFeatures];
+      for (int id = 0; id < numGlobalFeatures; id++)
+        if (compactIndices[id] >= 0) featureIds[compactIndices[id]] = id;
+      globalWeights = new double[numGlobalFeatures];
+      for (int t = 0; t < numThreads; t++)
+        gradients.add(new SparseAccumulator());
+      logLikelihoods = new double[numThreads];
+    }
+
+    int numFeatures() {
+      return featureIds.length;
+    }
+
+    void setParams(double[] x) {
+      for (int k = 0; k < x.length; k++)
+        globalWeights[featureIds[k]] = x[k];
+      params.setWeights(globalWeights);
+    }
+
+    /**
+     * The examples are split into contiguous chunks, one per thread, and the results of
+     * the chunks are summed in order (so the value does not depend on thread scheduling).
+     */
+    @Override
+    public double valueAt(double[] x, double[] gradient) {
+      for (int k = 0; k < x.length; k++)
+        globalWeights[featureIds[k]] = x[k];
+      List<Runnable> tasks = new ArrayList<>();
+      for (int t = 0; t < numThreads; t++) {
+        final int thread = t;
+        final int begin = t * examples.size() / numThreads, end = (t + 1) * examples.size() / numThreads;
+        tasks.add(new Runnable() {
+          @Override public void run() {
+            double sum = 0;
+            for (int j = begin; j < end; j++) {
+              CompiledExample compiled = compiledTrainExamples.get(examples.get(j));
+              double[] scores = compiled.weightByMultiplicity(compiled.getScores(globalWeights));
+              double[] expectationDiff = computeExpectationDiff(scores, compiled.rewards);
+              // No good candidate -- skip example (as in SGD)
+              if (expectationDiff == null) continue;
+              sum += computeLogLikelihood(scores, compiled.rewards);
+              compiled.addGradient(expectationDiff, gradients.get(thread));
+            }
+            logLikelihoods[thread] = sum;
+          }
+        });
+      }
+      if (executor == null) {
+        for (Runnable task : tasks) task.run();
+      } else {
+        Parallelizer.runAll(executor, tasks);
+      }
+      // Reduce
+      double n = examples.size(), beta = LearnerMaxEnt.opts.beta;
+      double logLikelihood = 0;
+      Arrays.fill(gradient, 0);
+      for (int t = 0; t < numThreads; t++) {
+        logLikelihood += logLikelihoods[t];
+        SparseAccumulator buffer = gradients.get(t);
+        for (int k = 0; k < buffer.size(); k++)
+          gradient[compactIndices[buffer.idAt(k)]] -= buffer.valueAt(k) / n;
+        buffer.clear();
+      }
+      double value = - logLikelihood / n;
+      for (int k = 0; k < x.length; k++) {
+        value += 0.5 * beta * x[k] * x[k];
+        gradient[k] += beta * x[k];
+      }
+      return value;
+    }
+
+    @Override
+    public boolean iterationDone(int iter, double[] x, double value) {
+      trainIter = iter;
+      if (!beVeryQuiet) Execution.putOutput("currIter", iter);
+      if (iterativeTester != null && opts.testFrequency > 0 && iter % opts.testFrequency == 0) {
+        setParams(x);
+        iterativeTester.message = "Iteration " + iter + " (objective = " + Fmt.D(value) + ")";
+        iterativeTester.run();
+      }
+      return true;
+    }
+  }
+}
@@ -1,13 +1,19 @@
 package edu.stanford.nlp.semparse.open.model;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import edu.stanford.nlp.semparse.open.core.eval.CandidateStatistics;
 import edu.stanford.nlp.semparse.open.core.eval.IterativeTester;
 import edu.stanford.nlp.semparse.open.dataset.Dataset;
 import edu.stanford.nlp.semparse.open.dataset.Example;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
 import edu.stanford.nlp.semparse.open.model.feature.FeatureType;
+import edu.stanford.nlp.semparse.open.util.Parallelizer;
+import edu.stanford.nlp.semparse.open.util.SparseAccumulator;
+import edu.stanford.nlp.semparse.open.util.TopKSelector;
 import fig.basic.Fmt;
 import fig.basic.LogInfo;
 import fig.basic.MapUtils;
@@ -30,6 +36,22 @@ public class LearnerMaxEnt implements Learner {
     public int featureMinimumCount = 0;
     @Option
     public boolean getOnly1CandidatePerGroup = false;
+    @Option(gloss = "Compile the features of each example into sparse matrices (see CompiledExample)")
+    public boolean compileExamples = true;
+    @Option(gloss = "When compiling, collapse candidates of the same group with identical features into one softmax entry")
+    public boolean collapseIdenticalCandidates = true;
+    @Option(gloss = "Train with lock-free parallel SGD (Hogwild) on Parallelizer.getNumThreads() threads "
+        + "(requires compiled examples)")
+    public boolean hogwild = false;
+    @Option(gloss = "If > 0, update the parameters once per mini-batch of this many examples, with the gradients "
+        + "computed on Parallelizer.getNumThreads() threads (deterministic; requires compiled examples)")
+    public int miniBatchSize = 0;
+    @Option(gloss = "If > 0, approximate the softmax of each compiled training example by its top this many "
+        + "unique candidates (by score) plus all candidates with positive reward")
+    public int truncatedSoftmaxSize = 0;
+    @Option(gloss = "Find the top candidate of an example that is not compiled yet by branch and bound "
+        + "over the candidate groups (see getTopCandidateByBranchAndBound)")
+    public boolean branchAndBoundPrediction = true;
   }
   public static Options opts = new Options();
 
@@ -89,13 +111,61 @@ public class LearnerMaxEnt implements Learner {
   @Override
   public List<Pair<Candidate, Double>> getRankedCandidates(Example example) {
     List<Pair<Candidate, Double>> answer = new ArrayList<>();
-    for (Candidate candidate : getCandidates(example)) {
-      answer.add(new Pair<Candidate, Double>(candidate, getScore(candidate)));
+    CompiledExample compiled = getCompiledExampleForPrediction(example);
+    if (compiled != null) {
+      double[] scores = compiled.expand(getScores(compiled));
+      for (int i = 0; i < scores.length; i++)
+        answer.add(new Pair<Candidate, Double>(compiled.candidates.get(i), scores[i]));
+    } else {
+      List<Candidate> candidates = getCandidates(example);
+      double[] scores = getScores(candidates, AllFeatureMatcher.matcher);
+      for (int i = 0; i < scores.length; i++)
+        answer.add(new Pair<Candidate, Double>(candidates.get(i), scores[i]));
     }
     Collections.sort(answer, new Pair.ReverseSecondComparator<Candidate, Double>());
     return answer;
   }
   
+  /**
+   * The snapshot is a LearnerMaxEnt (prediction is the same in the subclasses that support snapshots).
+   * Not supported with random initial weights, since the weights of unseen features are drawn
+   * from the shared random generator.
+   * 
+   * The examples are compiled into this learner (once for all snapshots of the same learn() call),
+   * and the snapshot predicts with a copy of the compiled prediction examples. The snapshot does not
+   * compile any example itself: the examples it does not have are scored in place.
+   */
+  @Override
+  public Learner getPredictionSnapshot(List<Example> examples) {
+    if (Params.opts.initWeightsRandomly) return null;
+    LearnerMaxEnt snapshot = new LearnerMaxEnt();
+    if (compiledPredictionExamples != null) {
+      for (Example example : examples)
+        getCompiledExampleForPrediction(example);
+      snapshot.compiledPredictionExamples = new IdentityHashMap<>(compiledPredictionExamples);
+      snapshot.compileForPrediction = false;
+    }
+    snapshot.params = params.copy();
+    if (advancedWordVectorParams != null)
+      snapshot.advancedWordVectorParams = advancedWordVectorParams.copy();
+    snapshot.trainIter = trainIter;
+    snapshot.beVeryQuiet = beVeryQuiet;
+    return snapshot;
+  }
+  
+  @Override
+  public List<CandidateStatistics> getTopCandidates(Example example, int k) {
+    if (k == 1 && opts.branchAndBoundPrediction && !isCompiledForPrediction(example)) {
+      List<CandidateStatistics> top = getTopCandidateByBranchAndBound(example);
+      if (top != null) return top;
+    }
+    CompiledExample compiled = getCompiledExampleForPrediction(example);
+    if (compiled != null)
+      return CandidateStatistics.getTopCandidateStats(compiled.candidates, compiled.expand(getScores(compiled)), k);
+    List<Candidate> candidates = getCandidates(example);
+    return CandidateStatistics.getTopCandidateStats(candidates, getScores(candidates, AllFeatureMatcher.matcher), k);
+  }
+  
   protected double getScore(Candidate candidate) {
     return getScore(candidate, AllFeatureMatcher.matcher);
   }
@@ -109,6 +179,201 @@ public class LearnerMaxEnt implements Learner {
     return score;
   }
   
+  /**
+   * Same as getScore(candidate, matcher) for all candidates. The parts of the score that only
+   * depend on the group (group features and advanced word vector score) are computed once per group.
+   */
+  protected double[] getScores(List<Candidate> candidates, FeatureMatcher matcher) {
+    Map<CandidateGroup, double[]> groupScores = new IdentityHashMap<>();
+    double[] scores = new double[candidates.size()];
+    for (int i = 0; i < scores.length; i++) {
+      Candidate candidate = candidates.get(i);
+      double[] groupScore = groupScores.get(candidate.group);
+      if (groupScore == null) {
+        groupScore = new double[] {candidate.group.features.dotProduct(params, matcher),
+            advancedWordVectorParams == null ? 0 : advancedWordVectorParams.getScore(candidate)};
+        groupScores.put(candidate.group, groupScore);
+      }
+      // Same order of additions as getScore(candidate, matcher)
+      scores[i] = candidate.features.dotProduct(params, matcher);
+      scores[i] += groupScore[0];
+      if (advancedWordVectorParams != null) {
+        scores[i] += groupScore[1];
+      }
+    }
+    return scores;
+  }
+  
+  /** Return the scores of the unique candidates of the compiled example */
+  protected double[] getScores(CompiledExample compiled) {
+    double[] scores = compiled.getScores(params);
+    if (advancedWordVectorParams != null) {
+      // The advanced word vector score only depends on the example and the group
+      double[] groupScores = new double[compiled.numGroups];
+      boolean[] computed = new boolean[compiled.numGroups];
+      for (int i = 0; i < scores.length; i++) {
+        int g = compiled.groupOf[i];
+        if (!computed[g]) {
+          groupScores[g] = advancedWordVectorParams.getScore(compiled.uniqueCandidates.get(i));
+          computed[g] = true;
+        }
+        scores[i] += groupScores[g];
+      }
+    }
+    return scores;
+  }
+  
+  // ============================================================
+  // Branch-and-bound prediction
+  // ============================================================
+  
+  // Relative slack for the rounding errors in the bounds
+  static final double BOUND_SLACK = 1e-9;
+  
+  private PathTailScoreBound pathTailScoreBound;
+  
+  protected synchronized PathTailScoreBound getPathTailScoreBound() {
+    if (pathTailScoreBound == null || !pathTailScoreBound.isValidFor(params))
+      pathTailScoreBound = new PathTailScoreBound(params);
+    return pathTailScoreBound;
+  }
+  
+  /**
+   * Same as getTopCandidates(example, 1), but the candidate features are only scored for the groups
+   * that can still contain the top candidate.
+   * 
+   * The group score (group features and advanced word vector score) is computed for every group,
+   * and the candidate part of the score is bounded by PathTailScoreBound. The groups are visited by
+   * decreasing upper bound until the bound falls below the best score found.
+   * 
+   * Return null if the candidate part of the score cannot be bounded.
+   */
+  protected List<CandidateStatistics> getTopCandidateByBranchAndBound(Example example) {
+    PathTailScoreBound bound = getPathTailScoreBound();
+    if (!bound.isAvailable()) return null;
+    List<Candidate> candidates = getCandidates(example);
+    if (candidates.isEmpty()) return Collections.emptyList();
+    // Group the candidates (groups are numbered in order of first appearance)
+    Map<CandidateGroup, Integer> groupIndices = new IdentityHashMap<>();
+    List<CandidateGroup> groups = new ArrayList<>();
+    int[] groupOf = new int[candidates.size()];
+    for (int i = 0; i < groupOf.length; i++) {
+      CandidateGroup group = candidates.get(i).group;
+      Integer g = groupIndices.get(group);
+      if (g == null) {
+        g = groups.size();
+        groupIndices.put(group, g);
+        groups.add(group);
+      }
+      groupOf[i] = g;
+    }
+    int numGroups = groups.size();
+    // Group scores and upper bounds
+    double[] groupScores = new double[numGroups], advancedScores = new double[numGroups];
+    double[] upperBounds = new double[numGroups];
+    Arrays.fill(upperBounds, Double.NEGATIVE_INFINITY);
+    boolean[] computed = new boolean[numGroups];
+    for (int i = 0; i < groupOf.length; i++) {
+      Candidate candidate = candidates.get(i);
+      int g = groupOf[i];
+      if (!computed[g]) {
+        groupScores[g] = candidate.group.features.dotProduct(params, AllFeatureMatcher.matcher);
+        if (advancedWordVectorParams != null)
+          advancedScores[g] = advancedWordVectorParams.getScore(candidate);
+        computed[g] = true;
+      }
+      upperBounds[g] = Math.max(upperBounds[g],
+          groupScores[g] + advancedScores[g] + bound.get(candidate.pattern.getPath().size()));
+    }
+    // Candidates of each group (in order)
+    int[] groupStarts = new int[numGroups + 1], members = new int[groupOf.length];
+    for (int g : groupOf) groupStarts[g + 1]++;
+    for (int g = 0; g < numGroups; g++) groupStarts[g + 1] += groupStarts[g];
+    int[] fill = Arrays.copyOf(groupStarts, numGroups);
+    for (int i = 0; i < groupOf.length; i++) members[fill[groupOf[i]]++] = i;
+    // Visit the groups by decreasing upper bound
+    int bestIndex = -1;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (int g : TopKSelector.select(upperBounds, numGroups)) {
+      if (bestIndex >= 0 && upperBounds[g] < bestScore - BOUND_SLACK * (1 + Math.abs(bestScore))) break;
+      for (int j = groupStarts[g]; j < groupStarts[g + 1]; j++) {
+        int i = members[j];
+        // Same order of additions as getScores(candidates, matcher)
+        double score = candidates.get(i).features.dotProduct(params, AllFeatureMatcher.matcher);
+        score += groupScores[g];
+        if (advancedWordVectorParams != null) {
+          score += advancedScores[g];
+        }
+        int c = Double.compare(score, bestScore);
+        if (bestIndex < 0 || c > 0 || (c == 0 && i < bestIndex)) {
+          bestIndex = i;
+          bestScore = score;
+        }
+      }
+    }
+    return Collections.singletonList(new CandidateStatistics(candidates.get(bestIndex), 1, 1, bestScore));
+  }
+  
+  // ============================================================
+  // Compiled examples
+  // ============================================================
+  
+  // Training examples compiled with the feature matcher of the current learn() call
+  protected Map<Example, CompiledExample> compiledTrainExamples = Collections.emptyMap();
+  // Examples compiled with all features during the current learn() call, where the iterative tester
+  // predicts on the same examples after every iteration (null outside learn())
+  protected Map<Example, CompiledExample> compiledPredictionExamples;
+  // Whether getCompiledExampleForPrediction compiles the examples missing from compiledPredictionExamples
+  // (false in prediction snapshots)
+  protected boolean compileForPrediction = true;
+  
+  /**
+   * Whether the candidates of each example can be compiled once and reused:
+   * getCandidates must return the same candidates every time, and the weights must be deterministic.
+   */
+  protected boolean canCompileExamples() {
+    return opts.compileExamples && !Params.opts.initWeightsRandomly;
+  }
+  
+  protected void compileTrainExamples(Collection<Example> examples, FeatureMatcher featureMatcher) {
+    compiledTrainExamples = new IdentityHashMap<>();
+    if (!canCompileExamples()) return;
+    LogInfo.begin_track("Compiling %d examples ...", examples.size());
+    long numEntries = 0, numCandidates = 0, numUnique = 0;
+    for (Example example : examples) {
+      CompiledExample compiled = new CompiledExample(getCandidates(example), featureMatcher,
+          opts.collapseIdenticalCandidates);
+      compiledTrainExamples.put(example, compiled);
+      if (featureMatcher == AllFeatureMatcher.matcher && compiledPredictionExamples != null)
+        compiledPredictionExamples.put(example, compiled);
+      numEntries += compiled.numEntries();
+      numCandidates += compiled.size();
+      numUnique += compiled.numUnique();
+    }
+    LogInfo.logs("%d nonzero entries; %d candidates collapsed into %d", numEntries, numCandidates, numUnique);
+    LogInfo.end_track();
+  }
+  
+  /**
+   * Return the example compiled with all features, or null if the candidates should be scored in place.
+   * Examples are only compiled during learn(), where the compiled example is reused by later iterations.
+   * Compiling an example that is scored only once costs more than scoring its candidates in place.
+   */
+  protected CompiledExample getCompiledExampleForPrediction(Example example) {
+    if (!canCompileExamples() || compiledPredictionExamples == null) return null;
+    CompiledExample compiled = compiledPredictionExamples.get(example);
+    if (compiled == null && compileForPrediction) {
+      compiled = new CompiledExample(getCandidates(example), AllFeatureMatcher.matcher,
+          opts.collapseIdenticalCandidates);
+      compiledPredictionExamples.put(example, compiled);
+    }
+    return compiled;
+  }
+  
+  protected boolean isCompiledForPrediction(Example example) {
+    return compiledPredictionExamples != null && compiledPredictionExamples.containsKey(example);
+  }
+  
   // ============================================================
   // Learn
   // ============================================================
@@ -138,7 +403,11 @@ public class LearnerMaxEnt implements Learner {
     if (additionalFeatureMatcher != null)
       featureMatcher = additionalFeatureMatcher;
     // Learn parameters
+    compiledPredictionExamples = new IdentityHashMap<>();
+    compileTrainExamples(dataset.trainExamples, featureMatcher);
     stochasticGradientDescent(dataset.trainExamples, featureMatcher);
+    compiledTrainExamples = Collections.emptyMap();
+    compiledPredictionExamples = null;
     // Prune features will small weights
     params.prune(opts.pruneSmallFeaturesThreshold);
     if (!beVeryQuiet)
@@ -160,16 +429,18 @@ public class LearnerMaxEnt implements Learner {
         LogInfo.begin_track("Iteration %d/%d", trainIter, opts.numTrainIters);
         Execution.putOutput("currIter", trainIter);
       }
-      for (Example example : examples) {
-        if (!beVeryQuiet) Execution.putOutput("currExample", example.displayId);
-        boolean updated = gradientUpdate(getCandidates(example), featureMatcher);
-        if (!updated) {
-          if (!beVeryQuiet) LogInfo.logs("Skip %s ...", example);
-        } else {
-          if (!beVeryQuiet) LogInfo.logs("Computed gradient for example %s ...", example);
-          performL1Regularization(opts.lambda / examples.size());
+      if (opts.miniBatchSize > 0 && isCompiled(examples, "Mini-batch training")) {
+        miniBatchIteration(new ArrayList<>(examples));
+      } else if (opts.hogwild && isCompiled(examples, "Hogwild")) {
+        hogwildIteration(examples);
+      } else {
+        for (Example example : examples) {
+          if (!beVeryQuiet) Execution.putOutput("currExample", example.displayId);
+          trainExample(example, featureMatcher, examples.size());
         }
       }
+      if (opts.truncatedSoftmaxSize > 0 && !beVeryQuiet)
+        logTruncationStatistics();
       if (iterativeTester != null) {
         iterativeTester.message = "Iteration " + trainIter + "/" + opts.numTrainIters;
         iterativeTester.run();
@@ -179,9 +450,240 @@ public class LearnerMaxEnt implements Learner {
     }
     
     // Summarize
-    if (iterativeTester != null && !beVeryQuiet) {
-      iterativeTester.summarize();
+    if (iterativeTester != null) {
+      iterativeTester.waitForResults();
+      if (!beVeryQuiet) iterativeTester.summarize();
+    }
+  }
+  
+  /**
+   * Perform the gradient update on a single example, followed by its share of the L1 regularization.
+   */
+  protected void trainExample(Example example, FeatureMatcher featureMatcher, int numExamples) {
+    CompiledExample compiled = compiledTrainExamples.get(example);
+    boolean updated = (compiled != null) ? gradientUpdate(compiled)
+        : gradientUpdate(getCandidates(example), featureMatcher);
+    if (!updated) {
+      if (!beVeryQuiet) LogInfo.logs("Skip %s ...", example);
+    } else {
+      if (!beVeryQuiet) LogInfo.logs("Computed gradient for example %s ...", example);
+      performL1Regularization(opts.lambda / numExamples);
+    }
+  }
+  
+  // ============================================================
+  // Parallel training
+  // ============================================================
+  
+  /**
+   * The parallel trainers need every example to be compiled, so that all feature ids are known
+   * and the gradients can be computed without touching shared state.
+   */
+  protected boolean isCompiled(Collection<Example> examples, String trainer) {
+    if (compiledTrainExamples.keySet().containsAll(examples)) return true;
+    if (trainIter == 1)
+      LogInfo.warnings("%s requires compiled examples; training serially instead.", trainer);
+    return false;
+  }
+  
+  /**
+   * Run one pass of SGD with the examples distributed over the threads of Parallelizer.
+   * The threads update the shared Params without locking (Niu et al., 2011), so the order of
+   * the updates (and hence the resulting weights) may differ between runs.
+   */
+  protected void hogwildIteration(final Collection<Example> examples) {
+    params.reserve(Params.featureIndexer.size());
+    List<Runnable> tasks = new ArrayList<>();
+    for (final Example example : examples) {
+      tasks.add(new Runnable() {
+        @Override public void run() {
+          trainExample(example, null, examples.size());
+        }
+      });
     }
+    Parallelizer.runAll(tasks);
+  }
+  
+  // Gradient buffer of each mini-batch task, and the gradient of its current example
+  protected final List<SparseAccumulator> miniBatchGradients = new ArrayList<>(),
+      miniBatchExampleGradients = new ArrayList<>();
+  
+  /**
+   * Run one pass of SGD with one parameter update per mini-batch.
+   * 
+   * Within a mini-batch, the examples are split into contiguous chunks, one per task.
+   * Each task computes the gradients of its chunk (with the parameters from the start of the batch)
+   * into its own buffer. The buffers are then summed in task order and applied with a single update,
+   * so the resulting weights only depend on the examples and the number of threads.
+   * With mini-batches of size 1, this is the same as stochasticGradientDescent.
+   * 
+   * As in stochasticGradientDescent, each example contributes the L2 term (- beta * weight)
+   * of the features it touches (with the weights from the start of the batch).
+   */
+  protected void miniBatchIteration(List<Example> examples) {
+    int numThreads = Math.min(Parallelizer.getNumThreads(), opts.miniBatchSize);
+    while (miniBatchGradients.size() < numThreads) {
+      miniBatchGradients.add(new SparseAccumulator());
+      miniBatchExampleGradients.add(new SparseAccumulator());
+    }
+    // One thread pool for the whole pass
+    ExecutorService executor = (numThreads == 1) ? null : Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int start = 0; start < examples.size(); start += opts.miniBatchSize)
+        miniBatchUpdate(examples.subList(start, Math.min(start + opts.miniBatchSize, examples.size())),
+            numThreads, executor, examples.size());
+    } finally {
+      if (executor != null) executor.shutdown();
+    }
+  }
+  
+  /**
+   * Compute the gradient of one mini-batch and update the parameters once.
+   */
+  protected void miniBatchUpdate(List<Example> batch, int numThreads, ExecutorService executor, int numExamples) {
+    SparseAccumulator gradient = gradientAccumulator.get();
+    CompiledExample[] compiledBatch = new CompiledExample[batch.size()];
+    double[][] expectationDiffs = computeMiniBatchGradients(batch, numThreads, executor, compiledBatch);
+    // Reduce in a fixed order
+    for (int t = 0; t < numThreads; t++) {
+      SparseAccumulator buffer = miniBatchGradients.get(t);
+      for (int k = 0; k < buffer.size(); k++)
+        gradient.add(buffer.idAt(k), buffer.valueAt(k));
+      buffer.clear();
+    }
+    int numUpdated = 0;
+    for (int j = 0; j < batch.size(); j++) {
+      if (expectationDiffs[j] == null) {
+        if (!beVeryQuiet) LogInfo.logs("Skip %s ...", batch.get(j));
+      } else {
+        if (!beVeryQuiet) LogInfo.logs("Computed gradient for example %s ...", batch.get(j));
+        numUpdated++;
+      }
+    }
+    if (numUpdated > 0) {
+      // The L2 terms are already in the gradient
+      params.update(gradient, 0);
+      updateAdvancedWordVectorParams(compiledBatch, expectationDiffs);
+      performL1Regularization(numUpdated * opts.lambda / numExamples);
+    }
+    gradient.clear();
+  }
+  
+  /**
+   * Compute the gradients of the examples in the batch into miniBatchGradients.
+   * Return the expectationDiff of each example (null if the example is skipped),
+   * and store the compiled example it refers to (possibly truncated) in compiledBatch.
+   */
+  protected double[][] computeMiniBatchGradients(final List<Example> batch, int numThreads,
+      ExecutorService executor, final CompiledExample[] compiledBatch) {
+    final double[][] expectationDiffs = new double[batch.size()][];
+    List<Runnable> tasks = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      final int begin = t * batch.size() / numThreads, end = (t + 1) * batch.size() / numThreads;
+      final SparseAccumulator buffer = miniBatchGradients.get(t), exampleGradient = miniBatchExampleGradients.get(t);
+      tasks.add(new Runnable() {
+        @Override public void run() {
+          for (int j = begin; j < end; j++) {
+            CompiledExample compiled = truncateSoftmax(compiledTrainExamples.get(batch.get(j)));
+            compiledBatch[j] = compiled;
+            expectationDiffs[j] = computeExpectationDiff(compiled, getScores(compiled));
+            if (expectationDiffs[j] == null) continue;
+            compiled.addGradient(expectationDiffs[j], exampleGradient);
+            for (int k = 0; k < exampleGradient.size(); k++) {
+              int i = exampleGradient.idAt(k);
+              buffer.add(i, exampleGradient.valueAt(k) + (- opts.beta) * params.getWeight(i));
+            }
+            exampleGradient.clear();
+          }
+        }
+      });
+    }
+    if (numThreads == 1) {
+      tasks.get(0).run();
+    } else {
+      Parallelizer.runAll(executor, tasks);
+    }
+    return expectationDiffs;
+  }
+  
+  // ============================================================
+  // Truncated softmax
+  // ============================================================
+  
+  // Statistics of the current iteration
+  protected int numTruncated;
+  protected double sumDroppedMassBound, maxDroppedMassBound;
+  
+  /**
+   * If the compiled example has more than opts.truncatedSoftmaxSize unique candidates, restrict it
+   * to the top opts.truncatedSoftmaxSize unique candidates by score (weighted by multiplicity)
+   * plus all unique candidates with positive reward. Otherwise, return the example itself.
+   * 
+   * Each dropped candidate has at most the weight of the largest dropped one, so the probability mass
+   * dropped from the softmax is at most (number dropped) * exp(max dropped score) / (sum of kept exp scores).
+   */
+  protected CompiledExample truncateSoftmax(CompiledExample compiled) {
+    int n = compiled.numUnique(), k = opts.truncatedSoftmaxSize;
+    if (k <= 0 || n <= k) return compiled;
+    final double[] scores = compiled.weightByMultiplicity(getScores(compiled));
+    // Min-heap of the top k (ties are broken in favor of earlier candidates)
+    Comparator<Integer> comparator = new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int c = Double.compare(scores[a], scores[b]);
+        return c != 0 ? c : Integer.compare(b, a);
+      }
+    };
+    PriorityQueue<Integer> top = new PriorityQueue<>(k, comparator);
+    for (int i = 0; i < n; i++) {
+      if (top.size() < k) {
+        top.add(i);
+      } else if (comparator.compare(i, top.peek()) > 0) {
+        top.poll();
+        top.add(i);
+      }
+    }
+    boolean[] isKept = new boolean[n];
+    for (int i : top) isKept[i] = true;
+    if (compiled.rewards != null) {
+      for (int i = 0; i < n; i++)
+        if (compiled.rewards[i] > 0) isKept[i] = true;
+    }
+    // Bound the dropped mass
+    int numKept = 0;
+    double maxKept = Double.NEGATIVE_INFINITY, maxDropped = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < n; i++) {
+      if (isKept[i]) {
+        numKept++;
+        maxKept = Math.max(maxKept, scores[i]);
+      } else {
+        maxDropped = Math.max(maxDropped, scores[i]);
+      }
+    }
+    int[] kept = new int[numKept];
+    double sumKept = 0;
+    for (int i = 0, j = 0; i < n; i++) {
+      if (isKept[i]) {
+        kept[j++] = i;
+        sumKept += Math.exp(scores[i] - maxKept);
+      }
+    }
+    recordTruncation(Math.min(1, (n - numKept) * Math.exp(maxDropped - maxKept) / sumKept));
+    return compiled.restrict(kept);
+  }
+  
+  protected synchronized void recordTruncation(double droppedMassBound) {
+    numTruncated++;
+    sumDroppedMassBound += droppedMassBound;
+    maxDroppedMassBound = Math.max(maxDroppedMassBound, droppedMassBound);
+  }
+  
+  protected synchronized void logTruncationStatistics() {
+    LogInfo.logs("Truncated softmax on %d examples: dropped mass <= %s (max), %s (mean)", numTruncated,
+        Fmt.D(maxDroppedMassBound), Fmt.D(numTruncated == 0 ? 0 : sumDroppedMassBound / numTruncated));
+    Execution.putOutput("droppedMassBound", maxDroppedMassBound);
+    numTruncated = 0;
+    sumDroppedMassBound = maxDroppedMassBound = 0;
   }
   
   protected List<Candidate> getCandidates(Example example) {
@@ -229,6 +731,37 @@ public class LearnerMaxEnt implements Learner {
       candidate.group.features.increment(expectationDiff[i], gradient, featureMatcher);
       candidate.features.increment(expectationDiff[i], gradient, featureMatcher);
     }
+    applyGradient(gradient, candidates, expectationDiff);
+    return true;
+  }
+  
+  /**
+   * Same as gradientUpdate(candidates, featureMatcher) on a compiled example.
+   */
+  protected boolean gradientUpdate(CompiledExample compiled) {
+    compiled = truncateSoftmax(compiled);
+    double[] expectationDiff = computeExpectationDiff(compiled, getScores(compiled));
+    if (expectationDiff == null) return false;
+    SparseAccumulator gradient = gradientAccumulator.get();
+    compiled.addGradient(expectationDiff, gradient);
+    // Perform gradient updates (with L2 regularization)
+    params.update(gradient, opts.beta);
+    gradient.clear();
+    updateAdvancedWordVectorParams(compiled.uniqueCandidates, expectationDiff);
+    return true;
+  }
+  
+  private static final ThreadLocal<SparseAccumulator> gradientAccumulator = new ThreadLocal<SparseAccumulator>() {
+    @Override
+    protected SparseAccumulator initialValue() {
+      return new SparseAccumulator();
+    }
+  };
+  
+  /**
+   * Add regularization to the gradient and update the parameters.
+   */
+  protected void applyGradient(Map<String, Double> gradient, List<Candidate> candidates, double[] expectationDiff) {
     // Regularization
     if (opts.beta != 0) {
       for (String featureName : gradient.keySet()) {
@@ -237,7 +770,10 @@ public class LearnerMaxEnt implements Learner {
     }
     // Perform gradient updates
     params.update(gradient);
-    
+    updateAdvancedWordVectorParams(candidates, expectationDiff);
+  }
+  
+  protected void updateAdvancedWordVectorParams(List<Candidate> candidates, double[] expectationDiff) {
     if (advancedWordVectorParams != null) {
       // Compute the gradient
       AdvancedWordVectorGradient advGradient = advancedWordVectorParams.createGradient();
@@ -251,8 +787,28 @@ public class LearnerMaxEnt implements Learner {
       }
       advancedWordVectorParams.update(advGradient);
     }
-    
-    return true;
+  }
+  
+  /**
+   * Same as updateAdvancedWordVectorParams(candidates, expectationDiff) with the gradients of
+   * the compiled examples in the batch summed up (skipped examples have null expectationDiff).
+   * Each updated example contributes its own regularization term.
+   */
+  protected void updateAdvancedWordVectorParams(CompiledExample[] compiledBatch, double[][] expectationDiffs) {
+    if (advancedWordVectorParams != null) {
+      AdvancedWordVectorGradient advGradient = advancedWordVectorParams.createGradient();
+      for (int j = 0; j < compiledBatch.length; j++) {
+        if (expectationDiffs[j] == null) continue;
+        List<Candidate> candidates = compiledBatch[j].uniqueCandidates;
+        for (int i = 0; i < expectationDiffs[j].length; i++)
+          advGradient.addToGradient(candidates.get(i), expectationDiffs[j][i]);
+        // Regularization
+        if (opts.beta != 0) {
+          advGradient.addL2Regularization(opts.beta);
+        }
+      }
+      advancedWordVectorParams.update(advGradient);
+    }
   }
   
   /**
@@ -263,12 +819,28 @@ public class LearnerMaxEnt implements Learner {
    */
   protected double[] computeExpectationDiff(List<Candidate> candidates, FeatureMatcher featureMatcher) {
     int n = candidates.size();
+    double scores[] = getScores(candidates, featureMatcher), rewards[] = new double[n];
+    for (int i = 0; i < n; i++) {
+      rewards[i] = candidates.get(i).getReward();
+    }
+    return computeExpectationDiff(scores, rewards);
+  }
+  
+  /**
+   * Same as computeExpectationDiff(candidates, featureMatcher) on the unique candidates
+   * of a compiled example (with the given scores), where each unique candidate stands for
+   * all candidates with its features.
+   */
+  protected double[] computeExpectationDiff(CompiledExample compiled, double[] scores) {
+    return computeExpectationDiff(compiled.weightByMultiplicity(scores), compiled.rewards);
+  }
+  
+  protected double[] computeExpectationDiff(double[] scores, double[] rewards) {
+    int n = scores.length;
     double expScore[] = new double[n], expScoreTimesReward[] = new double[n];
     for (int i = 0; i < n; i++) {
-      Candidate candidate = candidates.get(i);
-      double prediction = getScore(candidate, featureMatcher);
-      expScore[i] = prediction;
-      expScoreTimesReward[i] = expScore[i] + Math.log(candidate.getReward());
+      expScore[i] = scores[i];
+      expScoreTimesReward[i] = expScore[i] + Math.log(rewards[i]);
     }
 
     // Exponentiate and normalize.
@@ -284,6 +856,26 @@ public class LearnerMaxEnt implements Learner {
     return expectationDiff;
   }
   
+  /**
+   * Return the log-likelihood log (sum_i exp[g(x,y[i],params)]*R(y[i]) / sum_i exp[g(x,y[i],params)]),
+   * whose gradient with respect to the scores is computeExpectationDiff(scores, rewards).
+   * 
+   * Return NaN if there are no good candidates.
+   */
+  protected double computeLogLikelihood(double[] scores, double[] rewards) {
+    double maxScore = Double.NEGATIVE_INFINITY;
+    for (double score : scores)
+      maxScore = Math.max(maxScore, score);
+    double sum = 0, sumTimesReward = 0;
+    for (int i = 0; i < scores.length; i++) {
+      double expScore = Math.exp(scores[i] - maxScore);
+      sum += expScore;
+      sumTimesReward += expScore * rewards[i];
+    }
+    if (!(sumTimesReward > 0)) return Double.NaN;
+    return Math.log(sumTimesReward / sum);
+  }
+  
   // ============================================================
   // Persistence
   // ============================================================
@@ -2,20 +2,64 @@ package edu.stanford.nlp.semparse.open.model;
 
 import java.util.*;
 
+import edu.stanford.nlp.semparse.open.dataset.Dataset;
 import edu.stanford.nlp.semparse.open.dataset.Example;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
+import edu.stanford.nlp.semparse.open.model.candidate.CandidateGenerator;
+import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.model.candidate.TreePatternAndRange;
+import edu.stanford.nlp.semparse.open.model.feature.AncestorIndex;
+import edu.stanford.nlp.semparse.open.model.feature.AncestorLevel;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractor;
+import edu.stanford.nlp.semparse.open.util.TopKSelector;
 import fig.basic.LogInfo;
 import fig.basic.Option;
-import fig.basic.Pair;
 
+/**
+ * After beamTrainStartIter iterations, the candidates of an example are the top beamSize
+ * original candidates together with candidates derived from them by cutting their ranges.
+ *
+ * A derived candidate shares the features of its original candidate (candidate features only
+ * depend on the pattern). A derived group reuses the normalized entities and the ancestor
+ * statistics of its source group, and is created only once for each (source group, cut)
+ * within a call to learn (for the training examples) or to a prediction method (for the example).
+ */
 public class LearnerMaxEntWithBeamSearch extends LearnerMaxEnt {
   public static class Options {
     @Option public int beamSize = 500;
     @Option public int beamTrainStartIter = 1;
-    @Option public String beamCandidateType = "cutrange";
+    @Option(gloss = "cutrange = cut from either the start or the end / endcut = cut from the end only")
+    public String beamCandidateType = "cutrange";
+    @Option(gloss = "Maximum number of entities to cut from the start (cutrange)")
+    public int maxCutStart = 4;
+    @Option(gloss = "Maximum number of entities to cut from the end")
+    public int maxCutEnd = 9;
   }
   public static Options opts = new Options();
-  
+
+  // The beam changes as the parameters change
+  @Override
+  protected boolean canCompileExamples() {
+    return false;
+  }
+
+  // The beam and the derived candidates are cached in the learner
+  @Override
+  public Learner getPredictionSnapshot(List<Example> examples) {
+    return null;
+  }
+
+  @Override
+  public void learn(Dataset dataset, FeatureMatcher additionalFeatureMatcher) {
+    trainDerivations = new Derivations(dataset.trainExamples);
+    try {
+      super.learn(dataset, additionalFeatureMatcher);
+    } finally {
+      trainDerivations.release();
+      trainDerivations = null;
+    }
+  }
+
   @Override
   protected List<Candidate> getCandidates(Example example) {
     if (trainIter <= opts.beamTrainStartIter) {
@@ -24,41 +68,142 @@ public class LearnerMaxEntWithBeamSearch extends LearnerMaxEnt {
       return getBeamSearchedCandidates(example);
     }
   }
-  
+
   protected List<Candidate> getBeamSearchedCandidates(Example example) {
-    List<Pair<Candidate, Double>> rankedCandidates = super.getRankedCandidates(example);
-    rankedCandidates = rankedCandidates.subList(0, Math.min(opts.beamSize, rankedCandidates.size()));
+    List<Candidate> candidates = super.getCandidates(example);
+    int[] beam = TopKSelector.select(getScores(candidates, AllFeatureMatcher.matcher), opts.beamSize);
     List<Candidate> derivedCandidates = new ArrayList<>();
-    for (Pair<Candidate, Double> entry : rankedCandidates) {
-      derivedCandidates.addAll(getDerivedCandidates(entry.getFirst()));
+    synchronized (this) {
+      // Other examples (e.g., test examples) only keep their derived candidates for this call
+      boolean isTrainExample = trainDerivations != null && trainDerivations.examples.contains(example);
+      Derivations derivations = isTrainExample ? trainDerivations : new Derivations(Collections.singleton(example));
+      for (int i : beam) {
+        derivedCandidates.addAll(derivations.getDerivedCandidates(candidates.get(i)));
+      }
+      if (!isTrainExample) derivations.release();
     }
     return derivedCandidates;
   }
-  
-  protected List<Candidate> getDerivedCandidates(Candidate original) {
+
+  // ============================================================
+  // Derived candidates
+  // ============================================================
+
+  // Derived candidates of the training examples (only during learn)
+  protected Derivations trainDerivations;
+
+  /**
+   * The derived candidates and groups of some examples.
+   * The ancestor index and the entity analyses of the examples are kept until release(), so that
+   * the derived groups of different source groups share the ancestor levels and the entity analyses.
+   */
+  protected class Derivations {
+    final Set<Example> examples;
+    // Original candidate --> the candidate itself followed by the derived candidates
+    final Map<Candidate, List<Candidate>> derivedCandidates = new HashMap<>();
+    // Source group --> derived groups (parallel to getCuts)
+    final Map<CandidateGroup, CandidateGroup[]> derivedGroups = new HashMap<>();
+
+    Derivations(Collection<Example> examples) {
+      this.examples = Collections.newSetFromMap(new IdentityHashMap<Example, Boolean>());
+      this.examples.addAll(examples);
+    }
+
+    List<Candidate> getDerivedCandidates(Candidate original) {
+      List<Candidate> candidates = derivedCandidates.get(original);
+      if (candidates == null) {
+        candidates = deriveCandidates(original, this);
+        derivedCandidates.put(original, candidates);
+      }
+      return candidates;
+    }
+
+    void release() {
+      // The entity analyses and ancestor levels are only needed during extraction
+      for (CandidateGroup source : derivedGroups.keySet()) {
+        source.ex.entityAnalysisTable = null;
+        source.ex.ancestorIndex = null;
+      }
+      derivedCandidates.clear();
+      derivedGroups.clear();
+    }
+  }
+
+  /**
+   * The (amountCutStart, amountCutEnd) pairs of the derived candidates of a candidate with
+   * n entities. Each derived candidate keeps more than minNumCandidateEntity entities.
+   */
+  protected List<int[]> getCuts(int n) {
+    int maxCut = n - CandidateGenerator.opts.minNumCandidateEntity - 1;
+    List<int[]> cuts = new ArrayList<>();
     switch (opts.beamCandidateType) {
     case "cutrange":
-      LogInfo.fails("... not implemented yet ...");
-      //return TreePatternAndRange.generateCutRangeCandidates(original);
-      return null;
+      for (int i = 1; i <= Math.min(opts.maxCutStart, maxCut); i++)
+        cuts.add(new int[] {i, 0});
+      for (int i = 1; i <= Math.min(opts.maxCutEnd, maxCut); i++)
+        cuts.add(new int[] {0, i});
+      break;
     case "endcut":
-      LogInfo.fails("... not implemented yet ...");
-      return null;
+      for (int i = 1; i <= Math.min(opts.maxCutEnd, maxCut); i++)
+        cuts.add(new int[] {0, i});
+      break;
     default:
       LogInfo.fails("Unrecognized beam candidate type: %s", opts.beamCandidateType);
-      return null;
     }
+    return cuts;
   }
-  
-  @Override
-  public List<Pair<Candidate, Double>> getRankedCandidates(Example example) {
-    List<Pair<Candidate, Double>> answer = new ArrayList<>();
-    for (Candidate candidate : getBeamSearchedCandidates(example)) {
-      double score = candidate.features.dotProduct(params);
-      answer.add(new Pair<Candidate, Double>(candidate, score));
+
+  protected List<Candidate> deriveCandidates(Candidate original, Derivations derivations) {
+    List<Candidate> candidates = new ArrayList<>();
+    candidates.add(original);
+    List<int[]> cuts = getCuts(original.numEntities());
+    // Groups loaded from a CompiledDataset have no selected nodes to cut
+    if (cuts.isEmpty() || original.group.selectedNodes.isEmpty()) return candidates;
+    CandidateGroup[] groups = getDerivedGroups(original.group, cuts, derivations);
+    for (int k = 0; k < cuts.size(); k++) {
+      Candidate candidate = groups[k].addCandidate(new TreePatternAndRange(original.pattern, cuts.get(k)[0], cuts.get(k)[1]));
+      candidate.features = original.features;
+      candidates.add(candidate);
+    }
+    return candidates;
+  }
+
+  /**
+   * The groups of the source group cut by each cut.
+   *
+   * The level of each cut is derived from the level of the previous cut in the same direction
+   * (which has one more node), and the ancestor levels above the cut nodes are shared with
+   * the source group. So only the features of the levels that changed are computed for each cut
+   * (see AncestorLevel); the entity-based features reuse the entity analyses of the example.
+   */
+  protected CandidateGroup[] getDerivedGroups(CandidateGroup source, List<int[]> cuts, Derivations derivations) {
+    CandidateGroup[] groups = derivations.derivedGroups.get(source);
+    if (groups != null) return groups;
+    // The index is kept until the derivations are released
+    source.ex.initAncestorIndex();
+    AncestorIndex ancestorIndex = source.ex.ancestorIndex;
+    AncestorLevel sourceLevel = ancestorIndex.getLevel(source);
+    int n = source.numEntities();
+    groups = new CandidateGroup[cuts.size()];
+    AncestorLevel previousLevel = sourceLevel;
+    int[] previousCut = {0, 0};
+    for (int k = 0; k < cuts.size(); k++) {
+      int[] cut = cuts.get(k);
+      int start = cut[0], end = n - cut[1];
+      // Intern the derived level so that the feature extractor finds it
+      if (cut[0] == previousCut[0] + 1 && cut[1] == previousCut[1]) {
+        previousLevel = ancestorIndex.getSubLevel(previousLevel, 1, previousLevel.nodes.size());
+      } else if (cut[0] == previousCut[0] && cut[1] == previousCut[1] + 1) {
+        previousLevel = ancestorIndex.getSubLevel(previousLevel, 0, previousLevel.nodes.size() - 1);
+      } else {
+        previousLevel = ancestorIndex.getSubLevel(sourceLevel, start, end);
+      }
+      previousCut = cut;
+      groups[k] = source.getSubGroup(start, end);
+      FeatureExtractor.featureExtractor.extract(groups[k]);
     }
-    Collections.sort(answer, new Pair.ReverseSecondComparator<Candidate, Double>());
-    return answer;
+    derivations.derivedGroups.put(source, groups);
+    return groups;
   }
 
 }
@@ -7,9 +7,12 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
 
+import edu.stanford.nlp.semparse.open.util.SparseAccumulator;
+import edu.stanford.nlp.semparse.open.util.StringIndexer;
+
 /**
  * Params contains the parameters of the model. Currently consists of a map from
- * features to weights.
+ * features to weights, stored in arrays indexed by feature id (see featureIndexer).
  *
  * @author Percy Liang
  */
@@ -33,26 +36,102 @@ public class Params {
   }
   public static Options opts = new Options();
 
-  // Discriminative weights
-  HashMap<String, Double> weights = new HashMap<String, Double>();
-  
+  /** Feature name --> feature id (shared by all Params) */
+  public static final StringIndexer featureIndexer = new StringIndexer();
+
+  // For each feature id i:
+  //   state[STRIDE*i]   = weight (before the pending L1 cutoff)
+  //   state[STRIDE*i+1] = sum of squared gradients (for AdaGrad)
+  //   state[STRIDE*i+2] = value of cumulativeL1 when the weight was last set
+  // A feature has a weight only if present[i] is true (otherwise the default weight is used).
+  static final int STRIDE = 3;
+  double[] state = new double[0];
+  boolean[] present = new boolean[0];
+  // For dual averaging (allocated on first use)
+  double[] sumGradients;
+  // Incremented whenever the weights may have changed (to invalidate quantities derived from the weights)
+  int version;
+
   public double getWeight(String f) {
-    if (opts.initWeightsRandomly)
-      return MapUtils.getDouble(weights, f, 2 * opts.initRandom.nextDouble() - 1);
-    else
-      return MapUtils.getDouble(weights, f, opts.defaultWeight);
+    return getWeight(featureIndexer.indexOf(f));
+  }
+
+  /** Return the weight of the feature id (-1 = unknown feature) */
+  public double getWeight(int i) {
+    boolean isPresent = i >= 0 && i < present.length && present[i];
+    if (opts.initWeightsRandomly) {
+      double randomWeight = 2 * opts.initRandom.nextDouble() - 1;
+      return isPresent ? getPresentWeight(i) : randomWeight;
+    } else {
+      return isPresent ? getPresentWeight(i) : opts.defaultWeight;
+    }
+  }
+
+  /** Return the weight of a present feature with the pending L1 cutoff applied */
+  private double getPresentWeight(int i) {
+    double pendingL1 = cumulativeL1 - state[STRIDE * i + 2];
+    return pendingL1 > 0 ? L1Cut(state[STRIDE * i], pendingL1) : state[STRIDE * i];
+  }
+
+  private void ensureCapacity(int i) {
+    if (i < present.length) return;
+    int capacity = Math.max(i + 1, Math.max(16, present.length * 2));
+    state = Arrays.copyOf(state, STRIDE * capacity);
+    present = Arrays.copyOf(present, capacity);
+    if (sumGradients != null) sumGradients = Arrays.copyOf(sumGradients, capacity);
+  }
+
+  /**
+   * Allocate the storage for feature ids 0, ..., numFeatures - 1 in advance.
+   * Concurrent updates (see LearnerMaxEnt.Options.hogwild) are only safe on reserved feature ids.
+   */
+  public void reserve(int numFeatures) {
+    ensureCapacity(numFeatures - 1);
+    if (opts.dualAveraging && sumGradients == null) sumGradients = new double[present.length];
+  }
+
+  private void setWeight(int i, double weight) {
+    ensureCapacity(i);
+    present[i] = true;
+    state[STRIDE * i] = weight;
+    state[STRIDE * i + 2] = cumulativeL1;
+  }
+
+  /**
+   * Set the weight of each feature id i to weights[i], replacing all existing weights.
+   * Features with weight 0 are not stored.
+   */
+  public void setWeights(double[] weights) {
+    Arrays.fill(present, false);
+    cumulativeL1 = 0;
+    version++;
+    for (int i = 0; i < weights.length; i++)
+      if (weights[i] != 0) setWeight(i, weights[i]);
+  }
+
+  /** A copy of the weights (e.g., to predict with while training continues) */
+  public Params copy() {
+    Params copy = new Params();
+    copy.state = state.clone();
+    copy.present = present.clone();
+    if (sumGradients != null) copy.sumGradients = sumGradients.clone();
+    copy.cumulativeL1 = cumulativeL1;
+    copy.numUpdates = numUpdates;
+    return copy;
+  }
+
+  /** Number of features with weights */
+  public int size() {
+    int numWeights = 0;
+    for (boolean isPresent : present)
+      if (isPresent) numWeights++;
+    return numWeights;
   }
 
   // ============================================================
   // Weight update
   // ============================================================
 
-  // For AdaGrad
-  Map<String, Double> sumSquaredGradients = new HashMap<String, Double>();
-
-  // For dual averaging
-  Map<String, Double> sumGradients = new HashMap<String, Double>();
-
   // Number of stochastic updates we've made so far (for determining step size).
   int numUpdates;
 
@@ -61,31 +140,52 @@ public class Params {
    */
   public void update(Map<String, Double> gradient) {
     numUpdates++;
+    version++;
 
     for (Map.Entry<String, Double> entry : gradient.entrySet()) {
-      String f = entry.getKey();
-      double g = entry.getValue();
-      if (Math.abs(g) < 1e-6) continue;
-      double stepSize;
-      if (opts.adaptiveStepSize) {
-        MapUtils.incr(sumSquaredGradients, f, g * g);
-        stepSize = opts.initStepSize / Math.sqrt(sumSquaredGradients.get(f));
-      } else {
-        stepSize = opts.initStepSize / Math.pow(numUpdates, opts.stepSizeReduction);
-      }
-      if (Double.isNaN(stepSize) || Double.isNaN(g)) {
-        LogInfo.fails("WTF? %s %s %s", f, g, sumSquaredGradients.get(f));
-      }
-      if (opts.dualAveraging) {
-        if (!opts.adaptiveStepSize && opts.stepSizeReduction != 0)
-          throw new RuntimeException("Dual averaging not supported when " +
-                                     "step-size changes across iterations for " +
-                                     "features for which the gradient is zero");
-        MapUtils.incr(sumGradients, f, g);
-        MapUtils.set(weights, f, stepSize * sumGradients.get(f));
-      } else {
-        MapUtils.incr(weights, f, stepSize * g);
-      }
+      updateFeature(featureIndexer.getIndex(entry.getKey()), entry.getValue());
+    }
+  }
+
+  /**
+   * Same as update(gradient) after adding the L2 regularization term (- beta * weight)
+   * to the gradient of each touched feature, in a single pass.
+   */
+  public void update(SparseAccumulator gradient, double beta) {
+    numUpdates++;
+    version++;
+
+    for (int k = 0; k < gradient.size(); k++) {
+      int i = gradient.idAt(k);
+      double g = gradient.valueAt(k);
+      if (beta != 0) g += (- beta) * getWeight(i);
+      updateFeature(i, g);
+    }
+  }
+
+  private void updateFeature(int i, double g) {
+    if (Math.abs(g) < 1e-6) return;
+    ensureCapacity(i);
+    double stepSize;
+    if (opts.adaptiveStepSize) {
+      state[STRIDE * i + 1] += g * g;
+      stepSize = opts.initStepSize / Math.sqrt(state[STRIDE * i + 1]);
+    } else {
+      stepSize = opts.initStepSize / Math.pow(numUpdates, opts.stepSizeReduction);
+    }
+    if (Double.isNaN(stepSize) || Double.isNaN(g)) {
+      LogInfo.fails("WTF? %s %s %s", featureIndexer.getString(i), g, state[STRIDE * i + 1]);
+    }
+    if (opts.dualAveraging) {
+      if (!opts.adaptiveStepSize && opts.stepSizeReduction != 0)
+        throw new RuntimeException("Dual averaging not supported when " +
+                                   "step-size changes across iterations for " +
+                                   "features for which the gradient is zero");
+      if (sumGradients == null) sumGradients = new double[present.length];
+      sumGradients[i] += g;
+      setWeight(i, stepSize * sumGradients[i]);
+    } else {
+      setWeight(i, (present[i] ? getPresentWeight(i) : 0) + stepSize * g);
     }
   }
   
@@ -93,17 +193,31 @@ public class Params {
     return (x > cutoff) ? (x - cutoff) : (x < -cutoff) ? (x + cutoff) : 0;
   }
   
+  // Sum of the L1 cutoffs applied so far
+  double cumulativeL1;
+  
   /**
-   * Apply L1 regularization:
+   * Apply L1 regularization to all weights:
    * - If weight > cutoff,  then weight := weight - cutoff
    * - If weight < -cutoff, then weight := weight + cutoff
    * - Otherwise, weight := 0
+   * 
+   * Applying the cutoffs a and b in succession is the same as applying a + b,
+   * so the cutoff is only added to cumulativeL1 here. Each weight catches up with
+   * the cutoffs applied since it was last set whenever it is read or updated.
+   * 
    * @param cutoff    regularization parameter (>= 0)
    */
-  public void applyL1Regularization(double cutoff) {
+  public synchronized void applyL1Regularization(double cutoff) {
     if (cutoff <= 0) return;
-    for (Map.Entry<String, Double> entry : weights.entrySet()) {
-      entry.setValue(L1Cut(entry.getValue(), cutoff));
+    cumulativeL1 += cutoff;
+    version++;
+  }
+  
+  /** Apply the pending L1 cutoff to all stored weights */
+  protected void flushL1Regularization() {
+    for (int i = 0; i < present.length; i++) {
+      if (present[i]) setWeight(i, getPresentWeight(i));
     }
   }
   
@@ -113,12 +227,28 @@ public class Params {
    */
   public void prune(double threshold) {
     if (threshold <= 0) return;
-    Iterator<Map.Entry<String, Double>> iter = weights.entrySet().iterator();
-    while (iter.hasNext()) {
-      if (Math.abs(iter.next().getValue()) < threshold) iter.remove();
+    flushL1Regularization();
+    for (int i = 0; i < present.length; i++) {
+      if (present[i] && Math.abs(state[STRIDE * i]) < threshold) {
+        present[i] = false;
+        state[STRIDE * i] = 0;
+        version++;
+      }
     }
   }
   
+  /** Return (feature name, weight) pairs of all features with weights, sorted by weight (largest first) */
+  protected List<Map.Entry<String, Double>> getSortedWeights() {
+    flushL1Regularization();
+    List<Map.Entry<String, Double>> entries = new ArrayList<>();
+    for (int i = 0; i < present.length; i++) {
+      if (present[i])
+        entries.add(new AbstractMap.SimpleImmutableEntry<>(featureIndexer.getString(i), state[STRIDE * i]));
+    }
+    Collections.sort(entries, new ValueComparator<String, Double>(true));
+    return entries;
+  }
+  
   // ============================================================
   // Persistence
   // ============================================================
@@ -133,22 +263,21 @@ public class Params {
       String line;
       while ((line = in.readLine()) != null) {
         String[] pair = line.split("\t");
-        weights.put(pair[0], Double.parseDouble(pair[1]));
+        setWeight(featureIndexer.getIndex(pair[0]), Double.parseDouble(pair[1]));
       }
       in.close();
+      version++;
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    LogInfo.logs("Read %s weights", weights.size());
+    LogInfo.logs("Read %s weights", size());
     LogInfo.end_track();
   }
   
   public void write(PrintWriter out) { write(null, out); }
 
   public void write(String prefix, PrintWriter out) {
-    List<Map.Entry<String, Double>> entries = new ArrayList<>(weights.entrySet());
-    Collections.sort(entries, new ValueComparator<String, Double>(true));
-    for (Map.Entry<String, Double> entry : entries) {
+    for (Map.Entry<String, Double> entry : getSortedWeights()) {
       double value = entry.getValue();
       out.println((prefix == null ? "" : prefix + "\t") + entry.getKey() + "\t" + value);
     }
@@ -168,9 +297,7 @@ public class Params {
 
   public void log() {
     LogInfo.begin_track("Params");
-    List<Map.Entry<String, Double>> entries = new ArrayList<>(weights.entrySet());
-    Collections.sort(entries, new ValueComparator<String, Double>(true));
-    for (Map.Entry<String, Double> entry : entries) {
+    for (Map.Entry<String, Double> entry : getSortedWeights()) {
       double value = entry.getValue();
       LogInfo.logs("%s\t%s", entry.getKey(), value);
     }
@@ -0,0 +1,106 @@
+package edu.stanford.nlp.semparse.open.model;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.model.feature.FeaturePostProcessorConjoin;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureTypePathBased;
+
+/**
+ * An upper bound on the candidate part of the score (candidate.features . params) in terms of
+ * the length of the candidate's path.
+ *
+ * Candidate features are path-tail features (see FeatureTypePathBased) and cut range features
+ * (see FeatureTypeCutRange). Each of the first n levels of the path tail has at most one feature
+ * of each kind, whose weight is at most the maximum positive weight among the path-tail features
+ * of that level and kind. Each cut range feature is present at most once, so the positive weights
+ * of the cut range features are added to the bound of every path length. Both "ALL f" and "[prefix] f"
+ * (see FeatureConjunction) may be present, so the bound of the conjoined names (times the conjoin scale)
+ * is added to that of the original names.
+ *
+ * The bound is only valid for the version of the parameters it was computed from.
+ */
+class PathTailScoreBound {
+  static final String DOMAIN_PREFIX = "path-tail :: ";
+  static final String CUT_RANGE_DOMAIN_PREFIX = "cutrange :: ";
+
+  final Params params;
+  final int version;
+  // cumulativeBounds[n] = bound for a path tail with n levels (null if there is no bound)
+  private final double[] cumulativeBounds;
+
+  PathTailScoreBound(Params params) {
+    this.params = params;
+    this.version = params.version;
+    this.cumulativeBounds = computeCumulativeBounds();
+  }
+
+  /** Whether the bound is valid for the current weights of params */
+  boolean isValidFor(Params params) {
+    return this.params == params && version == params.version;
+  }
+
+  boolean isAvailable() {
+    return cumulativeBounds != null;
+  }
+
+  /** Upper bound on the candidate part of the score of a candidate with the given path length */
+  double get(int pathLength) {
+    return cumulativeBounds[FeatureTypePathBased.getNumPathTailLevels(pathLength)];
+  }
+
+  private double[] computeCumulativeBounds() {
+    double scale = FeaturePostProcessorConjoin.opts.useConjoin ? FeaturePostProcessorConjoin.getConjoinScale() : 0;
+    // Weights of features without parameters are not bounded
+    if (Params.opts.initWeightsRandomly || Params.opts.defaultWeight > 0 || scale < 0) return null;
+    int maxLevel = FeatureTypePathBased.getNumPathTailLevels(Integer.MAX_VALUE);
+    int numKinds = FeatureTypePathBased.NUM_PATH_TAIL_KINDS;
+    // Maximum positive weights of the original and the conjoined names, indexed by [level][kind]
+    double[][] original = new double[maxLevel + 1][numKinds], conjoined = new double[maxLevel + 1][numKinds];
+    // Maximum positive weights of the cut range features, indexed by name
+    Map<String, Double> originalCutRange = new HashMap<>(), conjoinedCutRange = new HashMap<>();
+    for (int i = 0; i < params.present.length; i++) {
+      if (!params.present[i]) continue;
+      String feature = Params.featureIndexer.getString(i);
+      int start = feature.indexOf(DOMAIN_PREFIX);
+      if (start < 0) {
+        start = feature.indexOf(CUT_RANGE_DOMAIN_PREFIX);
+        if (start < 0) continue;
+        double weight = params.getWeight(i);
+        if (weight <= 0) continue;
+        Map<String, Double> maxWeights = isOriginalPrefix(feature.substring(0, start))
+            ? originalCutRange : conjoinedCutRange;
+        String name = feature.substring(start + CUT_RANGE_DOMAIN_PREFIX.length());
+        Double maxWeight = maxWeights.get(name);
+        if (maxWeight == null || maxWeight < weight) maxWeights.put(name, weight);
+        continue;
+      }
+      double weight = params.getWeight(i);
+      if (weight <= 0) continue;
+      int[] levelAndKind = FeatureTypePathBased.parsePathTailFeature(feature.substring(start + DOMAIN_PREFIX.length()));
+      if (levelAndKind == null) return null;
+      // Candidates do not have features beyond maxLevel
+      if (levelAndKind[0] > maxLevel) continue;
+      double[] maxWeights = isOriginalPrefix(feature.substring(0, start))
+          ? original[levelAndKind[0]] : conjoined[levelAndKind[0]];
+      maxWeights[levelAndKind[1]] = Math.max(maxWeights[levelAndKind[1]], weight);
+    }
+    double[] cumulativeBounds = new double[maxLevel + 1];
+    for (double weight : originalCutRange.values()) cumulativeBounds[0] += weight;
+    for (double weight : conjoinedCutRange.values()) cumulativeBounds[0] += scale * weight;
+    for (int level = 1; level <= maxLevel; level++) {
+      double bound = 0;
+      for (int kind = 0; kind < numKinds; kind++) {
+        // Level 0 = names shared by all levels
+        bound += Math.max(original[level][kind], original[0][kind]);
+        bound += scale * Math.max(conjoined[level][kind], conjoined[0][kind]);
+      }
+      cumulativeBounds[level] = cumulativeBounds[level - 1] + bound;
+    }
+    return cumulativeBounds;
+  }
+
+  /** Whether the conjunction prefix of a feature name is that of the original names */
+  private static boolean isOriginalPrefix(String prefix) {
+    return prefix.isEmpty() || prefix.equals(FeatureConjunction.ORIGINAL_PREFIX + " ");
+  }
+}
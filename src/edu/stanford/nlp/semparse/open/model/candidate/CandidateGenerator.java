@@ -3,6 +3,7 @@ package edu.stanford.nlp.semparse.open.model.candidate;
 import java.util.*;
 
 import edu.stanford.nlp.semparse.open.dataset.Example;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractionProfile;
 import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractor;
 import edu.stanford.nlp.semparse.open.model.tree.KNode;
 import fig.basic.LogInfo;
@@ -46,13 +47,51 @@ public class CandidateGenerator {
     LogInfo.logs("Found %d candidates (%d groups)", ex.candidates.size(), ex.candidateGroups.size());
     LogInfo.end_track();
     LogInfo.begin_track("Extracting features ...");
+    FeatureExtractionProfile.beginExample();
     for (CandidateGroup group : ex.candidateGroups)
-      FeatureExtractor.featureExtractor.extract(group);
+      FeatureExtractor.featureExtractor.extractPageFeatures(group);
     for (Candidate candidate : ex.candidates)
-      FeatureExtractor.featureExtractor.extract(candidate);
+      FeatureExtractor.featureExtractor.extractPageFeatures(candidate);
+    pageCache.store(ex);
+    extractQueryFeatures(ex);
+    FeatureExtractionProfile.endExample();
     LogInfo.end_track();
   }
   
+  // ============================================================
+  // Page cache
+  // ============================================================
+  
+  protected final PageCache pageCache = new PageCache();
+  
+  /**
+   * If the web page of the example is in the page cache, populate the tree and the candidates
+   * from the cache, extract the query-level features, and return true.
+   */
+  public boolean processFromPageCache(Example ex) {
+    if (ex.tree != null || ex.candidates != null) return false;
+    if (!pageCache.restore(ex)) return false;
+    LogInfo.logs("[PAGE CACHE] Found %d candidates (%d groups)", ex.candidates.size(), ex.candidateGroups.size());
+    FeatureExtractionProfile.beginExample();
+    extractQueryFeatures(ex);
+    FeatureExtractionProfile.endExample();
+    return true;
+  }
+  
+  public PageCache getPageCache() {
+    return pageCache;
+  }
+  
+  private void extractQueryFeatures(Example ex) {
+    for (CandidateGroup group : ex.candidateGroups)
+      FeatureExtractor.featureExtractor.extractQueryFeatures(group);
+    for (Candidate candidate : ex.candidates)
+      FeatureExtractor.featureExtractor.extractQueryFeatures(candidate);
+    // The entity analyses, feature blocks, and ancestor levels are only needed during extraction
+    ex.entityAnalysisTable = null;
+    ex.ancestorIndex = null;
+  }
+  
   // ============================================================
   // Find candidates
   // ============================================================
@@ -7,6 +7,7 @@ import edu.stanford.nlp.semparse.open.ling.AveragedWordVector;
 import edu.stanford.nlp.semparse.open.ling.LingUtils;
 import edu.stanford.nlp.semparse.open.model.FeatureVector;
 import edu.stanford.nlp.semparse.open.model.tree.KNode;
+import edu.stanford.nlp.semparse.open.util.Multiset;
 import edu.stanford.nlp.semparse.open.util.StringSampler;
 import fig.basic.Option;
 
@@ -28,21 +29,50 @@ public class CandidateGroup {
   final List<Candidate> candidates;
   public FeatureVector features;
   public AveragedWordVector averagedWordVector;
+  // Headers above the selected nodes (page-level; see FeatureTypeHoleBased)
+  public Multiset<String> headers;
   
   public CandidateGroup(Example ex, List<KNode> selectedNodes) {
+    this(ex, selectedNodes, normalizeEntities(selectedNodes));
+  }
+  
+  private CandidateGroup(Example ex, List<KNode> selectedNodes, List<String> predictedEntities) {
     this.ex = ex;
     this.selectedNodes = new ArrayList<>(selectedNodes);
+    this.predictedEntities = new ArrayList<>(predictedEntities);
+    candidates = new ArrayList<>();
+  }
+  
+  private static List<String> normalizeEntities(List<KNode> selectedNodes) {
     List<String> entities = new ArrayList<>();
     for (KNode node : selectedNodes) {
       entities.add(LingUtils.normalize(node.fullText, opts.lateNormalizeEntities));
     }
-    predictedEntities = new ArrayList<>(entities);
-    candidates = new ArrayList<>();
+    return entities;
+  }
+  
+  /**
+   * Create a group whose entities were extracted in a previous run (see CompiledDataset).
+   * The group has no selected nodes since the knowledge tree is not rebuilt.
+   */
+  public static CandidateGroup fromPredictedEntities(Example ex, List<String> predictedEntities) {
+    return new CandidateGroup(ex, Collections.<KNode>emptyList(), predictedEntities);
+  }
+  
+  /**
+   * Create a group with the contiguous sublist [start:end] of the selected nodes.
+   * The normalized entity strings are reused.
+   */
+  public CandidateGroup getSubGroup(int start, int end) {
+    return new CandidateGroup(ex, selectedNodes.subList(start, end), predictedEntities.subList(start, end));
   }
   
   public void initAveragedWordVector() {
-    if (averagedWordVector == null)
-      averagedWordVector = new AveragedWordVector(predictedEntities);
+    if (averagedWordVector == null) {
+      // Groups with the same predicted entities share the averaged vector
+      ex.initEntityAnalysisTable();
+      averagedWordVector = ex.entityAnalysisTable.getAveragedWordVector(predictedEntities);
+    }
   }
   
   public int numEntities() {
@@ -0,0 +1,154 @@
+package edu.stanford.nlp.semparse.open.model.candidate;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.dataset.Example;
+import edu.stanford.nlp.semparse.open.dataset.ExampleCached;
+import edu.stanford.nlp.semparse.open.model.FeatureVector;
+import edu.stanford.nlp.semparse.open.model.tree.KNode;
+import edu.stanford.nlp.semparse.open.util.Multiset;
+import fig.basic.LogInfo;
+import fig.basic.Option;
+
+/**
+ * A bounded LRU cache of the query-independent parts of extracted examples, keyed by web page.
+ *
+ * Each entry holds the knowledge tree, the candidate groups and candidates,
+ * and the page-level features (see FeatureType.Scope) and headers of the groups. When another example asks for
+ * the same web page, only the query-level features have to be extracted.
+ *
+ * Note that the knowledge tree is shared between the examples. The QUERY node at the root
+ * still holds the phrase of the first example; feature types never look at it.
+ */
+public class PageCache {
+  public static class Options {
+    @Option(gloss = "Maximum number of web pages whose candidates and page-level features are cached "
+                  + "(0 = no cache)")
+    public int pageCacheSize = 0;
+  }
+  public static Options opts = new Options();
+
+  static class CachedGroup {
+    final List<KNode> selectedNodes;
+    final FeatureVector features;
+    final Multiset<String> headers;
+
+    CachedGroup(CandidateGroup group) {
+      this.selectedNodes = group.selectedNodes;
+      this.features = copy(group.features);
+      this.headers = group.headers;
+    }
+  }
+
+  static class CachedCandidate {
+    final int groupIndex;
+    final TreePattern pattern;
+    final FeatureVector features;
+
+    CachedCandidate(int groupIndex, Candidate candidate) {
+      this.groupIndex = groupIndex;
+      this.pattern = candidate.pattern;
+      this.features = copy(candidate.features);
+    }
+  }
+
+  static class Entry {
+    final KNode tree;
+    final List<CachedGroup> groups = new ArrayList<>();
+    final List<CachedCandidate> candidates = new ArrayList<>();
+
+    Entry(Example ex) {
+      this.tree = ex.tree;
+      Map<CandidateGroup, Integer> groupIndices = new IdentityHashMap<>();
+      for (CandidateGroup group : ex.candidateGroups) {
+        groupIndices.put(group, groups.size());
+        groups.add(new CachedGroup(group));
+      }
+      for (Candidate candidate : ex.candidates)
+        candidates.add(new CachedCandidate(groupIndices.get(candidate.group), candidate));
+    }
+  }
+
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > opts.pageCacheSize;
+    }
+  };
+
+  private int hits = 0, misses = 0;
+
+  /**
+   * Return the key identifying the web page of the example, or null if the page cannot be identified.
+   */
+  public static String getPageKey(Example ex) {
+    if (!(ex instanceof ExampleCached)) return null;
+    ExampleCached cex = (ExampleCached) ex;
+    if (cex.hashcode != null && cex.cacheDirectory != null)
+      return cex.cacheDirectory + "/" + cex.hashcode + " " + cex.url;
+    return cex.url;
+  }
+
+  /**
+   * Populate the tree, candidate groups, and candidates of the example from the cache.
+   * The groups get their page-level features; the query-level features are left to the caller.
+   *
+   * @return true if the page was found in the cache
+   */
+  public boolean restore(Example ex) {
+    if (opts.pageCacheSize <= 0) return false;
+    String key = getPageKey(ex);
+    if (key == null) return false;
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+      if (entry == null) {
+        misses++;
+        return false;
+      }
+      hits++;
+    }
+    ex.tree = entry.tree;
+    ex.candidateGroups = new ArrayList<>();
+    ex.candidates = new ArrayList<>();
+    for (CachedGroup cachedGroup : entry.groups) {
+      CandidateGroup group = new CandidateGroup(ex, cachedGroup.selectedNodes);
+      group.features = copy(cachedGroup.features);
+      group.headers = cachedGroup.headers;
+      ex.candidateGroups.add(group);
+    }
+    for (CachedCandidate cachedCandidate : entry.candidates) {
+      Candidate candidate = ex.candidateGroups.get(cachedCandidate.groupIndex).addCandidate(cachedCandidate.pattern);
+      candidate.features = copy(cachedCandidate.features);
+      ex.candidates.add(candidate);
+    }
+    return true;
+  }
+
+  /**
+   * Store the example in the cache. Must be called after the page-level features are
+   * extracted but before the query-level features are.
+   */
+  public void store(Example ex) {
+    if (opts.pageCacheSize <= 0) return;
+    String key = getPageKey(ex);
+    if (key == null) return;
+    Entry entry = new Entry(ex);
+    synchronized (entries) {
+      entries.put(key, entry);
+    }
+  }
+
+  public void logStats() {
+    synchronized (entries) {
+      LogInfo.logs("Page cache: %d hits, %d misses, %d pages", hits, misses, entries.size());
+    }
+  }
+
+  private static FeatureVector copy(FeatureVector v) {
+    FeatureVector answer = new FeatureVector();
+    answer.add(v);
+    return answer;
+  }
+}
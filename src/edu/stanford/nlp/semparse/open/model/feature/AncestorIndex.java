@@ -0,0 +1,57 @@
+package edu.stanford.nlp.semparse.open.model.feature;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.stanford.nlp.semparse.open.dataset.Example;
+import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.model.tree.KNode;
+
+/**
+ * Per-example index of AncestorLevel.
+ *
+ * Level 0 of a candidate group is its selected nodes, and level k+1 is the parents of level k.
+ * Different groups usually reach the same ancestors after a few levels, so each level is
+ * interned by its node list (KNode uses identity equality) and its statistics are
+ * computed only once per example.
+ */
+public class AncestorIndex {
+  public final Example ex;
+  protected final Map<List<KNode>, AncestorLevel> levels = new ConcurrentHashMap<>();
+
+  public AncestorIndex(Example ex) {
+    this.ex = ex;
+  }
+
+  public AncestorLevel getLevel(List<KNode> nodes) {
+    AncestorLevel level = levels.get(nodes);
+    if (level == null) {
+      level = new AncestorLevel(this, nodes);
+      levels.put(nodes, level);
+    }
+    return level;
+  }
+
+  /**
+   * The level of the contiguous sublist source.nodes[start:end] (e.g., the selected nodes of a
+   * group whose range was cut), derived incrementally from the source level if possible.
+   */
+  public AncestorLevel getSubLevel(AncestorLevel source, int start, int end) {
+    List<KNode> nodes = source.nodes.subList(start, end);
+    AncestorLevel level = levels.get(nodes);
+    if (level == null) {
+      level = new AncestorLevel(this, source, start, end);
+      levels.put(level.nodes, level);
+    }
+    return level;
+  }
+
+  /** The level of the selected nodes of the group */
+  public AncestorLevel getLevel(CandidateGroup group) {
+    return getLevel(group.selectedNodes);
+  }
+
+  public int size() {
+    return levels.size();
+  }
+}
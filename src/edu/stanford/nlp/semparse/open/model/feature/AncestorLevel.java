@@ -0,0 +1,267 @@
+package edu.stanford.nlp.semparse.open.model.feature;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.model.FeatureVector;
+import edu.stanford.nlp.semparse.open.model.tree.KNode;
+import edu.stanford.nlp.semparse.open.util.IntMultiset;
+import edu.stanford.nlp.semparse.open.util.Multiset;
+import fig.basic.LogInfo;
+
+/**
+ * A list of nodes at one level of an ancestor walk, together with the statistics
+ * that the node-based and hole-based feature types look at.
+ *
+ * The parents (the next level) are the distinct parents of the nodes in order of first appearance.
+ * Each statistic is computed on first access. The self-or-ancestors features of the level
+ * (see FeatureTypeNodeBased) are also kept here, so that groups sharing a level share its features.
+ */
+public class AncestorLevel {
+  public final AncestorIndex index;
+  public final List<KNode> nodes;
+  public final List<KNode> parents;
+  protected final Map<KNode, List<KNode>> parentToChildren;
+  private AncestorLevel parentLevel;
+
+  AncestorLevel(AncestorIndex index, List<KNode> nodes) {
+    this.index = index;
+    this.nodes = nodes;
+    List<KNode> parents = new ArrayList<>();
+    Map<KNode, List<KNode>> parentToChildren = new HashMap<>();
+    for (KNode node : nodes) {
+      if (node.parent == null) continue;
+      List<KNode> siblings = parentToChildren.get(node.parent);
+      if (siblings == null) {
+        siblings = new ArrayList<>();
+        parentToChildren.put(node.parent, siblings);
+        parents.add(node.parent);
+      }
+      siblings.add(node);
+    }
+    this.parents = parents;
+    this.parentToChildren = parentToChildren;
+  }
+
+  /**
+   * The level of the contiguous sublist source.nodes[start:end].
+   * When the node statistics of the source are available and fewer nodes are cut than kept,
+   * the statistics are derived from those of the source by removing the cut nodes.
+   * Otherwise, they are computed on first access as usual.
+   */
+  AncestorLevel(AncestorIndex index, AncestorLevel source, int start, int end) {
+    this(index, new ArrayList<>(source.nodes.subList(start, end)));
+    if (source.countTag != null && !source.hasDuplicateNodes
+        && source.nodes.size() - (end - start) < end - start)
+      deriveNodeStatistics(source, start, end);
+  }
+
+  /** The level of the parents, or null if there are no parents */
+  public AncestorLevel getParentLevel() {
+    if (parentLevel == null && !parents.isEmpty())
+      parentLevel = index.getLevel(parents);
+    return parentLevel;
+  }
+
+  // ============================================================
+  // Node statistics (self-or-ancestors)
+  // ============================================================
+
+  private Multiset<String> countTag, countId, countClass, countNumChildren;
+  private IntMultiset countChildIndex;
+  private double percentChildrenOfParents;
+  private boolean hasDuplicateNodes;
+
+  private void computeNodeStatistics() {
+    Multiset<String> countTag = new Multiset<>(),
+                      countId = new Multiset<>(),
+                   countClass = new Multiset<>(),
+             countNumChildren = new Multiset<>();
+    IntMultiset countChildIndex = new IntMultiset();
+    // The statistics are over distinct nodes
+    Collection<KNode> distinctNodes = new LinkedHashSet<>(nodes);
+    if (distinctNodes.size() == nodes.size()) distinctNodes = nodes;
+    else hasDuplicateNodes = true;
+    for (KNode node : distinctNodes) {
+      // Properties of the current node
+      countTag.add(node.value);
+      String nodeId = node.getId();
+      if (!nodeId.isEmpty())
+        countId.add(nodeId);
+      String nodeClass = node.getClasses();
+      if (!nodeClass.isEmpty())
+        countClass.add(nodeClass);
+      // Properties relating to children
+      int numChildren = node.countChildren();
+      countNumChildren.add((numChildren <= 3) ? "" + numChildren : "many");
+      if (node.parent != null)
+        countChildIndex.add(node.getChildIndex());
+    }
+    // Count how many children the parents have
+    int countChildrenOfParents = 0;
+    for (KNode parent : parents) {
+      countChildrenOfParents += parent.countChildren();
+    }
+    this.percentChildrenOfParents = distinctNodes.size() * 1.0 / countChildrenOfParents;
+    setNodeStatistics(countTag, countId, countClass, countNumChildren, countChildIndex);
+  }
+
+  /**
+   * Compute the node statistics from those of the source level, of which the nodes of this level
+   * are a contiguous sublist [start:end]. The source nodes must be distinct.
+   */
+  private void deriveNodeStatistics(AncestorLevel source, int start, int end) {
+    Multiset<String> countTag = new Multiset<>(source.countTag),
+                      countId = new Multiset<>(source.countId),
+                   countClass = new Multiset<>(source.countClass),
+             countNumChildren = new Multiset<>(source.countNumChildren);
+    IntMultiset countChildIndex = new IntMultiset(source.countChildIndex);
+    List<KNode> cutNodes = new ArrayList<>(source.nodes.subList(0, start));
+    cutNodes.addAll(source.nodes.subList(end, source.nodes.size()));
+    for (KNode node : cutNodes) {
+      countTag.remove(node.value, 1);
+      String nodeId = node.getId();
+      if (!nodeId.isEmpty())
+        countId.remove(nodeId, 1);
+      String nodeClass = node.getClasses();
+      if (!nodeClass.isEmpty())
+        countClass.remove(nodeClass, 1);
+      int numChildren = node.countChildren();
+      countNumChildren.remove((numChildren <= 3) ? "" + numChildren : "many", 1);
+      if (node.parent != null)
+        countChildIndex.remove(node.getChildIndex(), 1);
+    }
+    int countChildrenOfParents = 0;
+    for (KNode parent : parents) {
+      countChildrenOfParents += parent.countChildren();
+    }
+    this.percentChildrenOfParents = nodes.size() * 1.0 / countChildrenOfParents;
+    setNodeStatistics(countTag, countId, countClass, countNumChildren, countChildIndex);
+  }
+
+  private void setNodeStatistics(Multiset<String> countTag, Multiset<String> countId, Multiset<String> countClass,
+      Multiset<String> countNumChildren, IntMultiset countChildIndex) {
+    this.countNumChildren = countNumChildren;
+    this.countChildIndex = countChildIndex;
+    this.countClass = countClass;
+    this.countId = countId;
+    this.countTag = countTag;
+  }
+
+  public Multiset<String> getTagCounts() {
+    if (countTag == null) computeNodeStatistics();
+    return countTag;
+  }
+
+  public Multiset<String> getIdCounts() {
+    if (countTag == null) computeNodeStatistics();
+    return countId;
+  }
+
+  public Multiset<String> getClassCounts() {
+    if (countTag == null) computeNodeStatistics();
+    return countClass;
+  }
+
+  /** Number of children of each node ("0", "1", "2", "3", or "many") */
+  public Multiset<String> getNumChildrenCounts() {
+    if (countTag == null) computeNodeStatistics();
+    return countNumChildren;
+  }
+
+  public IntMultiset getChildIndexCounts() {
+    if (countTag == null) computeNodeStatistics();
+    return countChildIndex;
+  }
+
+  /** Number of nodes divided by the total number of children of the parents */
+  public double getPercentChildrenOfParents() {
+    if (countTag == null) computeNodeStatistics();
+    return percentChildrenOfParents;
+  }
+
+  // ============================================================
+  // Hole statistics
+  // ============================================================
+
+  /**
+   * Whether the nodes leave holes among the children of the parents.
+   * ("any" = among all children; "tag" = among the children with the same tag)
+   *
+   * Assume that the tags in each level are identical and the nodes are listed in order.
+   */
+  public static class HoleStatistics {
+    public final String parentTag, currentTag;
+    public boolean anyHoleTop, anyHoleMiddle, anyHoleBottom;
+    public boolean tagHoleTop, tagHoleMiddle, tagHoleBottom;
+    public boolean anyAll, tagAll, single;
+    /** The child index of the nodes if all parents have exactly one node at the same index; otherwise -1 */
+    public int singleAnyIndex = -1;
+
+    HoleStatistics(String parentTag, String currentTag) {
+      this.parentTag = parentTag;
+      this.currentTag = currentTag;
+    }
+  }
+
+  private HoleStatistics holeStatistics;
+
+  public HoleStatistics getHoleStatistics() {
+    if (holeStatistics == null) computeHoleStatistics();
+    return holeStatistics;
+  }
+
+  private void computeHoleStatistics() {
+    String parentTag = parents.get(0).value, currentTag = nodes.get(0).value;
+    HoleStatistics stats = new HoleStatistics(parentTag, currentTag);
+    Set<Integer> anyIndices = new HashSet<>();
+    for (KNode parent : parents) {
+      List<KNode> siblings = parentToChildren.get(parent);
+      List<KNode> anyChildren = parent.getChildren(), tagChildren = parent.getChildrenOfTag(currentTag);
+      // Holes
+      int anyTopIndex = anyChildren.indexOf(siblings.get(0)),
+          anyBottomIndex = anyChildren.indexOf(siblings.get(siblings.size() - 1)),
+          tagTopIndex = tagChildren.indexOf(siblings.get(0)),
+          tagBottomIndex = tagChildren.indexOf(siblings.get(siblings.size() - 1));
+      if (anyTopIndex == -1 || anyBottomIndex == -1 || tagTopIndex == -1 || tagBottomIndex == -1)
+        LogInfo.fails("WTF? %s %s %s", index.ex, parentTag, currentTag);
+      if (anyTopIndex != 0) stats.anyHoleTop = true;
+      if (anyBottomIndex != anyChildren.size() - 1) stats.anyHoleBottom = true;
+      if (anyBottomIndex - anyTopIndex + 1 != siblings.size()) stats.anyHoleMiddle = true;
+      if (tagTopIndex != 0) stats.tagHoleTop = true;
+      if (tagBottomIndex != tagChildren.size() - 1) stats.tagHoleBottom = true;
+      if (tagBottomIndex - tagTopIndex + 1 != siblings.size()) stats.tagHoleMiddle = true;
+      // Single & All
+      if (siblings.size() == 1) {
+        stats.single = true;
+        anyIndices.add(anyTopIndex);
+      } else {
+        if (anyChildren.size() == siblings.size()) stats.anyAll = true;
+        if (tagChildren.size() == siblings.size()) stats.tagAll = true;
+        anyIndices.add(-1);     // Hack to remove anyIndices
+      }
+    }
+    if (anyIndices.size() == 1)
+      stats.singleAnyIndex = anyIndices.iterator().next();
+    holeStatistics = stats;
+  }
+
+  // ============================================================
+  // Features
+  // ============================================================
+
+  // selfOrAncestorsFeatures[k] = features of this level as the k-th ancestor level of a group
+  private FeatureVector[] selfOrAncestorsFeatures;
+
+  /** The self-or-ancestors features at the given ancestor count, or null if not computed yet */
+  public FeatureVector getSelfOrAncestorsFeatures(int ancestorCount) {
+    if (selfOrAncestorsFeatures == null || ancestorCount >= selfOrAncestorsFeatures.length) return null;
+    return selfOrAncestorsFeatures[ancestorCount];
+  }
+
+  public void setSelfOrAncestorsFeatures(int ancestorCount, FeatureVector v) {
+    if (selfOrAncestorsFeatures == null || ancestorCount >= selfOrAncestorsFeatures.length)
+      selfOrAncestorsFeatures = (selfOrAncestorsFeatures == null) ? new FeatureVector[ancestorCount + 1]
+          : Arrays.copyOf(selfOrAncestorsFeatures, ancestorCount + 1);
+    selfOrAncestorsFeatures[ancestorCount] = v;
+  }
+}
@@ -0,0 +1,169 @@
+package edu.stanford.nlp.semparse.open.model.feature;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.ling.BrownClusterTable;
+import edu.stanford.nlp.semparse.open.ling.FrequencyTable;
+import edu.stanford.nlp.semparse.open.ling.LingData;
+import edu.stanford.nlp.semparse.open.ling.LingUtils;
+
+/**
+ * Properties of a single entity string that entity-based feature types look at.
+ *
+ * Each property is computed on first access, so the domains that are turned off
+ * do not pay for (or require the resources of) the properties they do not use.
+ */
+public class EntityAnalysis {
+  public final String entity;
+
+  public EntityAnalysis(String entity) {
+    this.entity = entity;
+  }
+
+  // ============================================================
+  // Shape
+  // ============================================================
+
+  private String phraseShape, collapsedPhraseShape;
+  private String[] wordShapes;
+
+  private void computeShapes() {
+    String shape = LingUtils.computePhraseShape(entity);
+    String[] shapes = shape.split(" ");
+    collapsedPhraseShape = LingUtils.collapse(shapes);
+    wordShapes = shapes;
+    phraseShape = shape;
+  }
+
+  public String getPhraseShape() {
+    if (phraseShape == null) computeShapes();
+    return phraseShape;
+  }
+
+  public String[] getWordShapes() {
+    if (phraseShape == null) computeShapes();
+    return wordShapes;
+  }
+
+  public String getCollapsedPhraseShape() {
+    if (phraseShape == null) computeShapes();
+    return collapsedPhraseShape;
+  }
+
+  // ============================================================
+  // Alpha-or-numeric tokens and token frequency
+  // ============================================================
+
+  private List<String> tokens;
+  private int numBadWords, numDigits;
+  private Map<Integer, Integer> numFrequentWords;
+
+  private void computeTokens() {
+    List<String> alphaOrNumericTokens = LingUtils.getAlphaOrNumericTokens(entity);
+    Map<Integer, Integer> frequent = new HashMap<>();
+    int bad = 0, digits = 0;
+    for (String token : alphaOrNumericTokens) {
+      for (Map.Entry<Integer, Set<String>> entry : FrequencyTable.topWordsLists.entrySet()) {
+        if (entry.getValue().contains(token)) {
+          Integer count = frequent.get(entry.getKey());
+          frequent.put(entry.getKey(), count == null ? 1 : count + 1);
+        }
+      }
+      if (FeatureTypeNaiveEntityBased.BADWORDS.contains(token)) bad++;
+      if (isDigits(token)) digits++;
+    }
+    numBadWords = bad;
+    numDigits = digits;
+    numFrequentWords = frequent;
+    tokens = alphaOrNumericTokens;
+  }
+
+  /** Same as token.matches("\\d+") */
+  private static boolean isDigits(String token) {
+    if (token.isEmpty()) return false;
+    for (int i = 0; i < token.length(); i++) {
+      char c = token.charAt(i);
+      if (c < '0' || c > '9') return false;
+    }
+    return true;
+  }
+
+  /** Lowercased alpha-or-numeric tokens (see LingUtils.getAlphaOrNumericTokens) */
+  public List<String> getAlphaOrNumericTokens() {
+    if (tokens == null) computeTokens();
+    return tokens;
+  }
+
+  public int getNumBadWords() {
+    if (tokens == null) computeTokens();
+    return numBadWords;
+  }
+
+  public int getNumDigits() {
+    if (tokens == null) computeTokens();
+    return numDigits;
+  }
+
+  /** Map from frequency bucket (top-k words) to the number of tokens in the bucket */
+  public Map<Integer, Integer> getNumFrequentWords() {
+    if (tokens == null) computeTokens();
+    return numFrequentWords;
+  }
+
+  // ============================================================
+  // Linguistic properties
+  // ============================================================
+
+  private LingData lingData;
+  private String joinedPOS, collapsedPOS;
+
+  public LingData getLingData() {
+    if (lingData == null) lingData = LingData.get(entity);
+    return lingData;
+  }
+
+  public String getJoinedPOS() {
+    if (joinedPOS == null) joinedPOS = LingUtils.join(getLingData().posTags);
+    return joinedPOS;
+  }
+
+  public String getCollapsedPOS() {
+    if (collapsedPOS == null) collapsedPOS = LingUtils.collapse(getLingData().posTags);
+    return collapsedPOS;
+  }
+
+  // ============================================================
+  // Brown clusters
+  // ============================================================
+
+  private List<String> tokenClusters;
+  private int[] clusterPrefixIds;
+
+  private void computeClusters() {
+    List<String> clusters = new ArrayList<>();
+    for (String token : getLingData().tokens) {
+      String cluster = BrownClusterTable.getCluster(token);
+      if (cluster != null) clusters.add(cluster);
+    }
+    int[] prefixIds = new int[clusters.size() * BrownClusterTable.DEFAULT_PREFIXES.length];
+    int i = 0;
+    for (String cluster : clusters) {
+      for (int prefixId : BrownClusterTable.getDefaultClusterPrefixIds(cluster))
+        prefixIds[i++] = prefixId;
+    }
+    clusterPrefixIds = prefixIds;
+    tokenClusters = clusters;
+  }
+
+  /** Brown clusters of the tokens (tokens without clusters are skipped) */
+  public List<String> getTokenClusters() {
+    if (tokenClusters == null) computeClusters();
+    return tokenClusters;
+  }
+
+  /** Ids of the default cluster prefixes of all token clusters, in token order (see BrownClusterTable.prefixIndexer) */
+  public int[] getClusterPrefixIds() {
+    if (tokenClusters == null) computeClusters();
+    return clusterPrefixIds;
+  }
+}
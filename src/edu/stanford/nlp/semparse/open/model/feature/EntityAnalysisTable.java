@@ -0,0 +1,106 @@
+package edu.stanford.nlp.semparse.open.model.feature;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.stanford.nlp.semparse.open.dataset.Example;
+import edu.stanford.nlp.semparse.open.ling.AveragedWordVector;
+import edu.stanford.nlp.semparse.open.ling.BrownClusterTable;
+import edu.stanford.nlp.semparse.open.ling.LingData;
+import edu.stanford.nlp.semparse.open.model.FeatureVector;
+
+/**
+ * Per-example table of EntityAnalysis.
+ *
+ * Candidate groups in the same example share most of their predicted entities,
+ * so each distinct entity string is analyzed only once per example.
+ * 
+ * The table also memoizes the entity-based feature blocks and averaged word vectors
+ * by the list of predicted entities, since different node sets (e.g., the raw and
+ * BR-normalized trees, or equivalent XPaths) often select identical strings.
+ */
+public class EntityAnalysisTable {
+  public final Example ex;
+  protected final Map<String, EntityAnalysis> analyses = new ConcurrentHashMap<>();
+  private Set<String> queryClusters;
+  private int[] queryClusterIds;
+
+  public EntityAnalysisTable(Example ex) {
+    this.ex = ex;
+  }
+
+  public EntityAnalysis get(String entity) {
+    EntityAnalysis analysis = analyses.get(entity);
+    if (analysis == null) {
+      analysis = new EntityAnalysis(entity);
+      analyses.put(entity, analysis);
+    }
+    return analysis;
+  }
+
+  public List<EntityAnalysis> get(List<String> entities) {
+    List<EntityAnalysis> answer = new ArrayList<>(entities.size());
+    for (String entity : entities) answer.add(get(entity));
+    return answer;
+  }
+
+  public int size() {
+    return analyses.size();
+  }
+
+  /** Default cluster prefixes and raw tokens of the query */
+  public Set<String> getQueryClusters() {
+    if (queryClusters == null) {
+      Set<String> clusters = new HashSet<>();
+      for (String token : LingData.get(ex.phrase).getTokens(true, true)) {
+        clusters.addAll(BrownClusterTable.getDefaultClusterPrefixesFromWord(token));
+        clusters.add(token);  // Also add the raw token
+      }
+      queryClusters = clusters;
+    }
+    return queryClusters;
+  }
+
+  /** Ids of getQueryClusters() in BrownClusterTable.prefixIndexer (raw tokens are indexed too) */
+  public int[] getQueryClusterIds() {
+    if (queryClusterIds == null) {
+      Set<String> clusters = getQueryClusters();
+      int[] ids = new int[clusters.size()];
+      int i = 0;
+      for (String cluster : clusters)
+        ids[i++] = BrownClusterTable.prefixIndexer.getIndex(cluster);
+      queryClusterIds = ids;
+    }
+    return queryClusterIds;
+  }
+
+  // ============================================================
+  // Memo keyed by entity list
+  // ============================================================
+
+  protected final Map<FeatureType.Scope, Map<List<String>, FeatureVector>> entityFeatures =
+      new EnumMap<>(FeatureType.Scope.class);
+  protected final Map<List<String>, AveragedWordVector> averagedWordVectors = new ConcurrentHashMap<>();
+  {
+    for (FeatureType.Scope scope : FeatureType.Scope.values())
+      entityFeatures.put(scope, new ConcurrentHashMap<List<String>, FeatureVector>());
+  }
+
+  /** Return the memoized entity-based features of the entity list, or null if absent */
+  public FeatureVector getEntityFeatures(List<String> entities, FeatureType.Scope scope) {
+    return entityFeatures.get(scope).get(entities);
+  }
+
+  public void putEntityFeatures(List<String> entities, FeatureType.Scope scope, FeatureVector v) {
+    entityFeatures.get(scope).put(entities, v);
+  }
+
+  public AveragedWordVector getAveragedWordVector(List<String> entities) {
+    AveragedWordVector averagedWordVector = averagedWordVectors.get(entities);
+    if (averagedWordVector == null) {
+      averagedWordVector = new AveragedWordVector(entities);
+      averagedWordVectors.put(entities, averagedWordVector);
+    }
+    return averagedWordVector;
+  }
+}
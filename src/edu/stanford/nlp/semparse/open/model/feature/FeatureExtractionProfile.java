@@ -0,0 +1,167 @@
+package edu.stanford.nlp.semparse.open.model.feature;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.model.FeatureVector;
+import fig.basic.LogInfo;
+import fig.basic.MapUtils;
+import fig.exec.Execution;
+
+/**
+ * Wall time, allocated bytes, and number of features fired by each FeatureType and
+ * FeaturePostProcessor, plus the number of features in each domain.
+ *
+ * FeatureExtractor records into the profile of the example being processed by the current thread
+ * (see beginExample and endExample). The profile of each example is merged into the run profile.
+ */
+public class FeatureExtractionProfile {
+
+  static class Entry {
+    long calls, nanos, bytes, numFeatures;
+  }
+
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+  private final Map<String, Integer> domainCounts = new HashMap<>();
+
+  public synchronized void record(String name, long nanos, long bytes, int numFeatures) {
+    Entry entry = entries.get(name);
+    if (entry == null) entries.put(name, entry = new Entry());
+    entry.calls++;
+    entry.nanos += nanos;
+    if (bytes > 0) entry.bytes += bytes;
+    entry.numFeatures += numFeatures;
+  }
+
+  public synchronized void countDomains(FeatureVector v) {
+    v.incrementDomainCounts(domainCounts);
+  }
+
+  public synchronized void add(FeatureExtractionProfile that) {
+    synchronized (that) {
+      for (Map.Entry<String, Entry> e : that.entries.entrySet()) {
+        Entry entry = entries.get(e.getKey());
+        if (entry == null) entries.put(e.getKey(), entry = new Entry());
+        entry.calls += e.getValue().calls;
+        entry.nanos += e.getValue().nanos;
+        entry.bytes += e.getValue().bytes;
+        entry.numFeatures += e.getValue().numFeatures;
+      }
+      for (Map.Entry<String, Integer> e : that.domainCounts.entrySet())
+        MapUtils.incr(domainCounts, e.getKey(), e.getValue());
+    }
+  }
+
+  // ============================================================
+  // Current example
+  // ============================================================
+
+  private static final ThreadLocal<FeatureExtractionProfile> current = new ThreadLocal<>();
+  private static final FeatureExtractionProfile total = new FeatureExtractionProfile();
+
+  /** The profile of the example being processed by the current thread, or null if not profiling */
+  public static FeatureExtractionProfile getCurrent() {
+    return current.get();
+  }
+
+  public static void beginExample() {
+    if (FeatureExtractor.opts.profileFeatureExtraction)
+      current.set(new FeatureExtractionProfile());
+  }
+
+  public static void endExample() {
+    FeatureExtractionProfile profile = current.get();
+    if (profile == null) return;
+    current.remove();
+    profile.logSummary();
+    total.add(profile);
+  }
+
+  public static FeatureExtractionProfile getTotal() {
+    return total;
+  }
+
+  // ============================================================
+  // Measurement
+  // ============================================================
+
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  /**
+   * Return the number of bytes allocated by the current thread so far,
+   * or -1 if the JVM does not support it.
+   */
+  public static long getAllocatedBytes() {
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+      if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled())
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * A measurement in progress: started before running a FeatureType or a FeaturePostProcessor
+   * and stopped afterward with the resulting vector size.
+   */
+  public class Probe {
+    final String name;
+    final int startSize;
+    final long startNanos, startBytes;
+
+    Probe(String name, int startSize) {
+      this.name = name;
+      this.startSize = startSize;
+      this.startBytes = getAllocatedBytes();
+      this.startNanos = System.nanoTime();
+    }
+
+    public void stop(int endSize) {
+      long nanos = System.nanoTime() - startNanos;
+      long bytes = startBytes < 0 ? -1 : getAllocatedBytes() - startBytes;
+      record(name, nanos, bytes, endSize - startSize);
+    }
+  }
+
+  public Probe start(String name, int startSize) {
+    return new Probe(name, startSize);
+  }
+
+  // ============================================================
+  // Output
+  // ============================================================
+
+  public synchronized void logSummary() {
+    long nanos = 0, bytes = 0, numFeatures = 0;
+    for (Entry entry : entries.values()) {
+      nanos += entry.nanos;
+      bytes += entry.bytes;
+      numFeatures += entry.numFeatures;
+    }
+    LogInfo.logs("Feature extraction: %.1f ms, %.1f MB allocated, %d features",
+        nanos / 1e6, bytes / 1e6, numFeatures);
+  }
+
+  /** Log the summary table and publish the numbers with Execution.putOutput */
+  public synchronized void logTable() {
+    LogInfo.begin_track("Feature extraction profile");
+    LogInfo.logs("%-42s %8s %10s %10s %10s", "type", "calls", "ms", "MB", "features");
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      LogInfo.logs("%-42s %8d %10.1f %10.1f %10d", e.getKey(), entry.calls,
+          entry.nanos / 1e6, entry.bytes / 1e6, entry.numFeatures);
+      Execution.putOutput("featureTime." + e.getKey(), String.format("%.1f", entry.nanos / 1e6));
+      Execution.putOutput("featureBytes." + e.getKey(), entry.bytes);
+      Execution.putOutput("featureCount." + e.getKey(), entry.numFeatures);
+    }
+    List<String> domains = new ArrayList<>(domainCounts.keySet());
+    Collections.sort(domains);
+    LogInfo.logs("%-42s %10s", "domain", "features");
+    for (String domain : domains) {
+      LogInfo.logs("%-42s %10d", domain, domainCounts.get(domain));
+      Execution.putOutput("domainCount." + domain, domainCounts.get(domain));
+    }
+    LogInfo.end_track();
+  }
+}
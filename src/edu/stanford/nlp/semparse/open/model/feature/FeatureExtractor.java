@@ -5,12 +5,20 @@ import java.util.*;
 import edu.stanford.nlp.semparse.open.model.FeatureVector;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.model.feature.FeatureExtractionProfile.Probe;
+import fig.basic.Option;
 
 /**
  * A FeatureExtractor populate candidate's features.
  * It calls the extract method of different FeatureTypes.
  */
 public class FeatureExtractor {
+  public static class Options {
+    @Option(gloss = "Record the time, allocated bytes, and number of features of each feature type "
+                  + "and each feature domain (see FeatureExtractionProfile)")
+    public boolean profileFeatureExtraction = false;
+  }
+  public static Options opts = new Options();
 
   protected final List<FeatureType> featureTypes = Arrays.asList(
       new FeatureTypeNaiveEntityBased(),
@@ -26,25 +34,128 @@ public class FeatureExtractor {
   
   public void extract(Candidate candidate) {
     if (candidate.features != null) return;
+    extractPageFeatures(candidate);
+    extractQueryFeatures(candidate);
+  }
+  
+  public void extract(CandidateGroup group) {
+    if (group.features != null) return;
+    extractPageFeatures(group);
+    extractQueryFeatures(group);
+  }
+  
+  // ============================================================
+  // Page-level and query-level features
+  // ============================================================
+  
+  /**
+   * Features that only depend on the web page.
+   * Candidate features are all page-level.
+   */
+  public void extractPageFeatures(Candidate candidate) {
     candidate.features = new FeatureVector();
     for (FeatureType featureType : featureTypes) {
+      Probe probe = startProbe(featureType, "candidate", candidate.features);
       featureType.extract(candidate);
+      stopProbe(probe, candidate.features);
     }
+  }
+  
+  /**
+   * Features that depend on the query. The page-level features must already be present.
+   * Post-processors (which may conjoin features with the query) are also run here.
+   */
+  public void extractQueryFeatures(Candidate candidate) {
+    countDomains(candidate.features);
+    postProcess(candidate);
+  }
+  
+  /**
+   * Run the post-processors. Also used on features loaded from a CompiledDataset,
+   * which are stored before post-processing.
+   */
+  public void postProcess(Candidate candidate) {
     for (FeaturePostProcessor featurePostProcessor : featurePostProcessors) {
+      Probe probe = startProbe(featurePostProcessor, "candidate", candidate.features);
       featurePostProcessor.process(candidate);
+      stopProbe(probe, candidate.features);
     }
   }
   
-  public void extract(CandidateGroup group) {
-    if (group.features != null) return;
+  public void extractPageFeatures(CandidateGroup group) {
     group.features = new FeatureVector();
     group.features.add("basic", "bias");
     for (FeatureType featureType : featureTypes) {
-      featureType.extract(group);
+      Probe probe = startProbe(featureType, "group-PAGE", group.features);
+      featureType.extract(group, FeatureType.Scope.PAGE);
+      stopProbe(probe, group.features);
+    }
+    group.features.add(getEntityBasedFeatures(group, FeatureType.Scope.PAGE));
+  }
+  
+  public void extractQueryFeatures(CandidateGroup group) {
+    for (FeatureType featureType : featureTypes) {
+      Probe probe = startProbe(featureType, "group-QUERY", group.features);
+      featureType.extract(group, FeatureType.Scope.QUERY);
+      stopProbe(probe, group.features);
     }
+    group.features.add(getEntityBasedFeatures(group, FeatureType.Scope.QUERY));
+    countDomains(group.features);
+    postProcess(group);
+  }
+  
+  public void postProcess(CandidateGroup group) {
     for (FeaturePostProcessor featurePostProcessor : featurePostProcessors) {
+      Probe probe = startProbe(featurePostProcessor, "group", group.features);
       featurePostProcessor.process(group);
+      stopProbe(probe, group.features);
+    }
+  }
+  
+  /**
+   * Entity-based features are computed once per distinct list of predicted entities
+   * in an example, then copied into the groups.
+   */
+  protected FeatureVector getEntityBasedFeatures(CandidateGroup group, FeatureType.Scope scope) {
+    group.ex.initEntityAnalysisTable();
+    EntityAnalysisTable table = group.ex.entityAnalysisTable;
+    FeatureVector v = table.getEntityFeatures(group.predictedEntities, scope);
+    if (v == null) {
+      v = new FeatureVector();
+      for (FeatureType featureType : featureTypes) {
+        Probe probe = startProbe(featureType, "entity-" + scope, v);
+        featureType.extractEntityBased(group, v, scope);
+        stopProbe(probe, v);
+      }
+      table.putEntityFeatures(group.predictedEntities, scope, v);
     }
+    return v;
+  }
+  
+  // ============================================================
+  // Profiling
+  // ============================================================
+  
+  /**
+   * Start measuring the extractor (a FeatureType or a FeaturePostProcessor) on the vector.
+   * Return null if the current example is not being profiled.
+   *
+   * Entity-based features are only measured when they are computed, not when they are reused.
+   */
+  protected static Probe startProbe(Object extractor, String target, FeatureVector v) {
+    FeatureExtractionProfile profile = FeatureExtractionProfile.getCurrent();
+    if (profile == null) return null;
+    return profile.start(extractor.getClass().getSimpleName() + ":" + target, v.size());
+  }
+  
+  protected static void stopProbe(Probe probe, FeatureVector v) {
+    if (probe != null) probe.stop(v.size());
+  }
+  
+  /** Count the features of each domain (before post-processing) */
+  protected static void countDomains(FeatureVector v) {
+    FeatureExtractionProfile profile = FeatureExtractionProfile.getCurrent();
+    if (profile != null) profile.countDomains(v);
   }
   
   public static final FeatureExtractor featureExtractor = new FeatureExtractor();
@@ -1,11 +1,15 @@
 package edu.stanford.nlp.semparse.open.model.feature;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import edu.stanford.nlp.semparse.open.dataset.Example;
 import edu.stanford.nlp.semparse.open.ling.LingUtils;
 import edu.stanford.nlp.semparse.open.ling.QueryTypeTable;
 import edu.stanford.nlp.semparse.open.ling.WordNetClusterTable;
+import edu.stanford.nlp.semparse.open.model.FeatureConjunction;
 import edu.stanford.nlp.semparse.open.model.FeatureMatcher;
 import edu.stanford.nlp.semparse.open.model.FeatureVector;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
@@ -114,26 +118,44 @@ public class FeaturePostProcessorConjoin extends FeaturePostProcessor {
     }
   }
   
+  /**
+   * The conjoined features are not materialized (see FeatureConjunction).
+   * Whether a feature matches cjRegExConjoin is decided once per feature and shared between query types.
+   */
   private FeatureVector getConjoinedFeatureVector(FeatureVector vOld, String queryType) {
-    FeatureVector v = new FeatureVector();
-    if (opts.cjRegExConjoin != null) {
-      FeatureMatcher matcher = new RegExFeatureMatcher(opts.cjRegExConjoin),
-          invMatcher = new RegExFeatureMatcher(opts.cjRegExConjoin, true);
-      if (opts.cjKeepOriginalFeatures) {
-        v.addConjoin(vOld, "ALL");
-      } else {
-        v.addConjoin(vOld, "ALL", invMatcher);
-      }
-      if (opts.cjScaleConjoinFeatures != 1.0) {
-        v.addConjoin(vOld, queryType, matcher, opts.cjScaleConjoinFeatures);
+    return FeatureVector.conjoin(vOld, getConjunction(queryType));
+  }
+  
+  private final ConcurrentMap<String, FeatureConjunction> conjunctions = new ConcurrentHashMap<>();
+  private final Map<String, Boolean> conjoinDecisions = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ConcurrentMap<String, String>> conjoinedNames = FeatureConjunction.newNameMemo();
+  private FeatureMatcher conjoinMatcher;
+  
+  /**
+   * The scale of the conjoined features.
+   * Without cjRegExConjoin, all features are conjoined and not scaled.
+   */
+  public static double getConjoinScale() {
+    return (opts.cjRegExConjoin != null) ? opts.cjScaleConjoinFeatures : 1.0;
+  }
+  
+  private FeatureConjunction getConjunction(String queryType) {
+    FeatureConjunction conjunction = conjunctions.get(queryType);
+    if (conjunction == null) {
+      if (opts.cjRegExConjoin != null) {
+        synchronized (this) {
+          if (conjoinMatcher == null) conjoinMatcher = new RegExFeatureMatcher(opts.cjRegExConjoin);
+        }
+        conjunction = new FeatureConjunction(queryType, conjoinMatcher, conjoinDecisions, conjoinedNames,
+            opts.cjKeepOriginalFeatures, getConjoinScale());
       } else {
-        v.addConjoin(vOld, queryType, matcher);
+        conjunction = new FeatureConjunction(queryType, null, null, conjoinedNames,
+            opts.cjKeepOriginalFeatures, getConjoinScale());
       }
-    } else {
-      if (opts.cjKeepOriginalFeatures) v.addConjoin(vOld, "ALL");
-      v.addConjoin(vOld, queryType);
+      FeatureConjunction existing = conjunctions.putIfAbsent(queryType, conjunction);
+      if (existing != null) conjunction = existing;
     }
-    return v;
+    return conjunction;
   }
   
 }
@@ -9,6 +9,8 @@ import edu.stanford.nlp.semparse.open.model.FeatureVector;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
 import edu.stanford.nlp.semparse.open.model.tree.KNode;
+import edu.stanford.nlp.semparse.open.util.AbstractMultiset;
+import edu.stanford.nlp.semparse.open.util.IntMultiset;
 import edu.stanford.nlp.semparse.open.util.Multiset;
 import fig.basic.LogInfo;
 import fig.basic.Option;
@@ -17,9 +19,17 @@ import fig.basic.Option;
  * Base class for all feature types.
  * 
  * A feature type must extends this class and implement 2 methods:
- * - extract(CandidateGroup group) : For features that are common to all candidates in the same group
+ * - extract(CandidateGroup group, Scope scope) : For features that are common to all candidates in the same group
  * - extract(Candidate candidate) : For other features
  * 
+ * Group features that only depend on the predicted entities (and the query) should instead go to
+ * extractEntityBased(CandidateGroup group, FeatureVector v, Scope scope). These are computed once
+ * per distinct list of predicted entities in an example and shared between groups.
+ * 
+ * Group features are extracted in 2 scopes: PAGE features depend only on the web page,
+ * while QUERY features also look at the query (Example.phrase). Candidate features must not
+ * depend on the query. PAGE features can be cached across examples on the same page.
+ * 
  * This class also provides convenience methods for firing features.
  */
 public abstract class FeatureType {
@@ -69,8 +79,18 @@ public abstract class FeatureType {
   // Common methods
   // ============================================================
   
+  public enum Scope { PAGE, QUERY };
+  
   public abstract void extract(Candidate candidate);
-  public abstract void extract(CandidateGroup group);
+  public abstract void extract(CandidateGroup group, Scope scope);
+  
+  /**
+   * Add the group features that depend only on group.predictedEntities (and the query
+   * in the QUERY scope) to v. (Do not look at group.selectedNodes here.)
+   */
+  public void extractEntityBased(CandidateGroup group, FeatureVector v, Scope scope) {
+    // Do nothing
+  }
   
   public static Set<String> registeredNonBasicDomains = new HashSet<>(Arrays.asList(
       // (Structural) Node-based
@@ -129,6 +149,14 @@ public abstract class FeatureType {
   // Helper Methods
   // ============================================================
 
+  /**
+   * Get the analyses of the group's predicted entities from the per-example table.
+   */
+  protected List<EntityAnalysis> getEntityAnalyses(CandidateGroup group) {
+    group.ex.initEntityAnalysisTable();
+    return group.ex.entityAnalysisTable.get(group.predictedEntities);
+  }
+
   /**
    * Add features ">= 1", ">= 2", ">= 4", ">= 8", etc.
    */
@@ -202,13 +230,14 @@ public abstract class FeatureType {
    * 
    * @param bagOfWords    whether to add features for each word of the distinct values
    */
-  protected <T> void addDistinctElementFeatures(FeatureVector v, String domain, String name, Multiset<T> multiset,
+  protected void addDistinctElementFeatures(FeatureVector v, String domain, String name, AbstractMultiset multiset,
       boolean bagOfWords) {
-    for (T element : multiset.elementSet()) {
+    for (int slot = 0; slot < multiset.capacity(); slot++) {
+      if (!multiset.isOccupied(slot)) continue;
       if (bagOfWords) {
-        addBagOfWordFeatures(v, domain, name, (String) element);
+        addBagOfWordFeatures(v, domain, name, multiset.keyStringAt(slot));
       } else {
-        v.add(domain, name + " = " + element);
+        v.add(domain, name + " = " + multiset.keyStringAt(slot));
       }
     }
   }
@@ -231,21 +260,22 @@ public abstract class FeatureType {
     // [...]-tag
     v.add(domain, name + "-tag = " + node.value);
     // [...]-id
-    String id = node.getAttribute("id");
+    // (The id and class attributes are parsed once when the tree is built)
+    String id = node.getId();
     if (!id.isEmpty()) {
       if (bagOfWords)
-        addBagOfWordFeatures(v, domain, name + "-id", node.getAttribute("id"));
+        addBagOfWordFeatures(v, domain, name + "-id", id);
       else
-        v.add(domain, name + "-id = " + id.replaceAll("[0-9]+", "0"));
+        v.add(domain, name + "-id = " + node.getNormalizedId());
     }
     // [...]-class
-    String classes = node.getAttribute("class");
+    String classes = node.getClasses();
     if (!classes.isEmpty()) {
       if (bagOfWords)
-        addBagOfWordFeatures(v, domain, name + "-class", node.getAttribute("class"));
+        addBagOfWordFeatures(v, domain, name + "-class", classes);
       else
-        for (String className : classes.split("\\s+"))
-          v.add(domain, name + "-class = " + className.replaceAll("[0-9]+", "0"));
+        for (String className : node.getNormalizedClasses())
+          v.add(domain, name + "-class = " + className);
     }
   }
   
@@ -256,24 +286,24 @@ public abstract class FeatureType {
   /**
    * Return true if the Multiset has any repeated entry
    */
-  protected boolean hasDuplicateEntry(Multiset<?> multiset) {
-    return multiset.entrySet().size() != multiset.size();
+  protected boolean hasDuplicateEntry(AbstractMultiset multiset) {
+    return multiset.numDistinct() != multiset.size();
   }
   
   /**
    * Return the maximum amount of duplication
    */
-  protected <T> int maxDuplication(Multiset<T> multiset) {
+  protected int maxDuplication(AbstractMultiset multiset) {
     int max = 0;
-    for (Map.Entry<T, Integer> entry : multiset.entrySet())
-      max = Math.max(max, entry.getValue());
+    for (int slot = 0; slot < multiset.capacity(); slot++)
+      max = Math.max(max, multiset.countAt(slot));
     return max;
   }
   
   /**
    * Add feature [...]-max-duplication
    */
-  protected <T> void addDuplicationFeatures(FeatureVector v, String domain, String name, Multiset<T> multiset) {
+  protected void addDuplicationFeatures(FeatureVector v, String domain, String name, AbstractMultiset multiset) {
     int maxDuplication = maxDuplication(multiset);
     addQuantizedFeatures(v, domain, name + "-max-duplication", maxDuplication);
   }
@@ -283,14 +313,24 @@ public abstract class FeatureType {
    * one values share the same majority count, assign null instead.
    */
   protected <T> T getAbsoluteMajority(Multiset<T> multiset) {
-    T majority = null;
+    int slot = getAbsoluteMajoritySlot(multiset);
+    return slot == -1 ? null : multiset.keyAt(slot);
+  }
+  
+  /**
+   * Same as getAbsoluteMajority, but return the slot of the majority value (or -1).
+   */
+  protected int getAbsoluteMajoritySlot(AbstractMultiset multiset) {
+    int majority = -1;
     int majorityCount = 0;
-    for (Map.Entry<T, Integer> entry : multiset.entrySet()) {
-      if (entry.getValue() > majorityCount) {
-        majority = entry.getKey();
-        majorityCount = entry.getValue();
-      } else if (entry.getValue() == majorityCount) {
-        majority = null;
+    for (int slot = 0; slot < multiset.capacity(); slot++) {
+      if (!multiset.isOccupied(slot)) continue;
+      int count = multiset.countAt(slot);
+      if (count > majorityCount) {
+        majority = slot;
+        majorityCount = count;
+      } else if (count == majorityCount) {
+        majority = -1;
       }
     }
     return majority;
@@ -302,17 +342,18 @@ public abstract class FeatureType {
    * The entropy is H(x) = -sum[p(x) log p(x)]
    * where p(x) = count(x) / size(multiset)
    */
-  protected <T> double getEntropy(Multiset<T> multiset) {
-    if (multiset.elementSet().size() == 1) return 0.0;
+  protected double getEntropy(AbstractMultiset multiset) {
+    if (multiset.numDistinct() == 1) return 0.0;
     double entropy = 0.0;
-    for (Map.Entry<T, Integer> entry : multiset.entrySet()) {
-      double p = 1.0 * entry.getValue() / multiset.size();
+    for (int slot = 0; slot < multiset.capacity(); slot++) {
+      if (!multiset.isOccupied(slot)) continue;
+      double p = 1.0 * multiset.countAt(slot) / multiset.size();
       entropy -= p * Math.log(p);
     }
     return entropy;
   }
   
-  protected <T> double getNormalizedEntropy(Multiset<T> multiset) {
+  protected double getNormalizedEntropy(AbstractMultiset multiset) {
     if (multiset.size() <= 1) return 0.0;
     return getEntropy(multiset) / Math.log(multiset.size());
   }
@@ -320,7 +361,7 @@ public abstract class FeatureType {
   /**
    * Add feature [...]-entropy
    */
-  protected <T> void addEntropyFeatures(FeatureVector v, String domain, String name, Multiset<T> multiset) {
+  protected void addEntropyFeatures(FeatureVector v, String domain, String name, AbstractMultiset multiset) {
     double entropy = getEntropy(multiset);
     if (entropy > 0 && multiset.size() > 1) {
       double normalizedEntropy = entropy / Math.log(multiset.size());
@@ -348,21 +389,23 @@ public abstract class FeatureType {
    * @param addMajorityEvenIfSingle
    *      add [...]-majority feature even if there is only 1 element in the multiset (default = true)
    */
-  protected <T> void addVotingFeatures(FeatureVector v, String domain, String name, Multiset<T> multiset,
+  protected void addVotingFeatures(FeatureVector v, String domain, String name, AbstractMultiset multiset,
       boolean bagOfWords, boolean addMajorityEvenIfSingle) {
     if (opts.noAggregation) {
-      for (Map.Entry<T, Integer> entry : multiset.entrySet()) {
-        for (int i = 0; i < entry.getValue(); i++)
-          v.add(domain, name + " = " + entry.getKey());
+      for (int slot = 0; slot < multiset.capacity(); slot++) {
+        if (!multiset.isOccupied(slot)) continue;
+        String feature = name + " = " + multiset.keyStringAt(slot);
+        for (int i = 0; i < multiset.countAt(slot); i++)
+          v.add(domain, feature);
       }
       return;
     }
     if (multiset.isEmpty()) return;
     addEntropyFeatures(v, domain, name, multiset);
     //addPercentFeatures(v, domain, name + "-percent-distinct", multiset.elementSet().size() * 1.0 / multiset.size());
-    T majority = getAbsoluteMajority(multiset);
-    if (majority == null) return;
-    double majorityRatio = multiset.count(majority) * 1.0 / multiset.size();
+    int majority = getAbsoluteMajoritySlot(multiset);
+    if (majority == -1) return;
+    double majorityRatio = multiset.countAt(majority) * 1.0 / multiset.size();
     if (opts.addMajorityPercentageFeature) {
       addPercentFeatures(v, domain, name + "-majority-ratio", majorityRatio);
     }
@@ -380,20 +423,20 @@ public abstract class FeatureType {
     }
     // Majority value
     if (bagOfWords) {
-      addBagOfWordFeatures(v, domain, name + "-majority", (String) majority);
+      addBagOfWordFeatures(v, domain, name + "-majority", multiset.keyStringAt(majority));
     } else {
       if (multiset.size() > 1 || addMajorityEvenIfSingle) {
-        v.add(domain, name + "-majority = " + majority);
+        v.add(domain, name + "-majority = " + multiset.keyStringAt(majority));
       }
     }
   }
 
-  protected <T> void addVotingFeatures(FeatureVector v, String domain, String name, Multiset<T> multiset,
+  protected void addVotingFeatures(FeatureVector v, String domain, String name, AbstractMultiset multiset,
       boolean bagOfWords) {
     addVotingFeatures(v, domain, name, multiset, bagOfWords, true);
   }
 
-  protected <T> void addVotingFeatures(FeatureVector v, String domain, String name, Multiset<T> multiset) {
+  protected void addVotingFeatures(FeatureVector v, String domain, String name, AbstractMultiset multiset) {
     addVotingFeatures(v, domain, name, multiset, false, true);
   }
     
@@ -401,11 +444,11 @@ public abstract class FeatureType {
   // Continuous statistics
   // ============================================================
 
-  protected <T extends Number> void addMeanDeviationFeatures(FeatureVector v, String domain, String name,
-      Multiset<T> multiset) {
+  protected void addMeanDeviationFeatures(FeatureVector v, String domain, String name, IntMultiset multiset) {
     double mean = 0.0, variance = 0.0;
-    for (T element : multiset.elementSet()) {
-      double value = element.doubleValue();
+    for (int slot = 0; slot < multiset.capacity(); slot++) {
+      if (!multiset.isOccupied(slot)) continue;
+      double value = multiset.keyAt(slot);
       mean += value;
       variance += value * value;
     }
@@ -19,7 +19,7 @@ public class FeatureTypeCutRange extends FeatureType {
   }
   
   @Override
-  public void extract(CandidateGroup group) {
+  public void extract(CandidateGroup group, Scope scope) {
     // Do nothing
   }
   
@@ -31,108 +31,21 @@ public class FeatureTypeHoleBased extends FeatureType {
   }
 
   @Override
-  public void extract(CandidateGroup group) {
-    extractHoleBasedFeatures(group);
+  public void extract(CandidateGroup group, Scope scope) {
+    if (scope == Scope.PAGE) {
+      extractHoleBasedFeatures(group);
+    } else {
+      extractHeaderMatchFeatures(group);
+    }
   }
   
   protected void extractHoleBasedFeatures(CandidateGroup group) {
     if (isAllowedDomain("hole") || isAllowedDomain("header")) {
-      List<KNode> currentKNodes = group.selectedNodes;
-      List<Integer> singleAnyIndexStack = new ArrayList<>();
-      Multiset<String> headers = new Multiset<>();
-      for (int ancestorCount = 0; ancestorCount < FeatureType.opts.maxAncestorCount; ancestorCount++) {
-        // Group the nodes based on parents
-        List<KNode> parents = new ArrayList<>();
-        Map<KNode, List<KNode>> parentToCurrent = new HashMap<>();
-        for (KNode node : currentKNodes) {
-          List<KNode> siblings = parentToCurrent.get(node.parent);
-          if (siblings == null) {
-            siblings = new ArrayList<>();
-            parentToCurrent.put(node.parent, siblings);
-            parents.add(node.parent);
-          }
-          siblings.add(node);
-        }
-        // Investigate each parent
-        // Assume that the tags in each level are identical
-        // Assume further that the nodes are listed in order
-        // TODO Add support for wildcards
-        String parentTag = parents.get(0).value, currentTag = currentKNodes.get(0).value;
-        boolean anyHoleTop = false, anyHoleMiddle = false, anyHoleBottom = false;
-        boolean tagHoleTop = false, tagHoleMiddle = false, tagHoleBottom = false;
-        boolean anyAll = false, tagAll = false, single = false;
-        Set<Integer> anyIndices = new HashSet<>();
-        for (KNode parent : parents) {
-          List<KNode> siblings = parentToCurrent.get(parent);
-          List<KNode> anyChildren = parent.getChildren(), tagChildren = parent.getChildrenOfTag(currentTag);
-          // Holes
-          int anyTopIndex = anyChildren.indexOf(siblings.get(0)),
-              anyBottomIndex = anyChildren.indexOf(siblings.get(siblings.size() - 1)),
-              tagTopIndex = tagChildren.indexOf(siblings.get(0)),
-              tagBottomIndex = tagChildren.indexOf(siblings.get(siblings.size() - 1));
-          if (anyTopIndex == -1 || anyBottomIndex == -1 || tagTopIndex == -1 || tagBottomIndex == -1)
-            LogInfo.fails("WTF? %s %s %s %s %d", group.ex, group.predictedEntities, parentTag, currentTag, ancestorCount);
-          if (anyTopIndex != 0) anyHoleTop = true;
-          if (anyBottomIndex != anyChildren.size() - 1) anyHoleBottom = true;
-          if (anyBottomIndex - anyTopIndex + 1 != siblings.size()) anyHoleMiddle = true;
-          if (tagTopIndex != 0) tagHoleTop = true;
-          if (tagBottomIndex != tagChildren.size() - 1) tagHoleBottom = true;
-          if (tagBottomIndex - tagTopIndex + 1 != siblings.size()) tagHoleMiddle = true;
-          // Single & All
-          if (siblings.size() == 1) {
-            single = true;
-            anyIndices.add(anyTopIndex);
-          } else {
-            if (anyChildren.size() == siblings.size()) anyAll = true;
-            if (tagChildren.size() == siblings.size()) tagAll = true;
-            anyIndices.add(-1);     // Hack to remove anyIndices
-          }
-        }
-        // Fire features
-        if (isAllowedDomain("hole")) {
-          String prefix = opts.holeUseTag ? (parentTag + "/" + currentTag + "-") : "";
-          if (anyAll) group.features.add("hole", prefix + "any-all");
-          if (tagAll) group.features.add("hole", prefix + "tag-all");
-          if (single) group.features.add("hole", prefix + "single");
-          if (anyHoleTop) group.features.add("hole", prefix + "any-hole-top");
-          if (anyHoleMiddle) group.features.add("hole", prefix + "any-hole-middle");
-          if (anyHoleBottom) group.features.add("hole", prefix + "any-hole-bottom");
-          if (tagHoleTop) group.features.add("hole", prefix + "tag-hole-top");
-          if (tagHoleMiddle) group.features.add("hole", prefix + "tag-hole-middle");
-          if (tagHoleBottom) group.features.add("hole", prefix + "tag-hole-bottom");
-        }
-        // AnyIndex
-        if (anyIndices.size() == 1) {
-          int index = anyIndices.toArray(new Integer[1])[0];
-          singleAnyIndexStack.add(index);
-        } else {
-          singleAnyIndexStack.add(-1);
-        }
-        // Header -- the parallel element at the top hole
-        if (isAllowedDomain("header") && anyHoleTop) {
-          List<Integer> indices = new ArrayList<>(singleAnyIndexStack);
-          indices.set(indices.size() - 1, 0);       // Choose the top hole
-          // Get the parallel element
-          KNode node = parents.get(0);
-          for (int i = indices.size() - 1; i >= 0; i--) {
-            try {
-              node = node.getChildren().get(indices.get(i));
-            } catch (IndexOutOfBoundsException e) {
-              break;
-            }
-          }
-          if (node.fullText != null && !node.fullText.isEmpty()) {
-            String header = node.fullText;
-            headers.add(header);
-          }
-        }
-        // Go to the next level
-        if (parents.isEmpty() || parentTag.equals("html")) break;
-        currentKNodes = parents;
-      }
+      Multiset<String> headers = walkAncestors(group, isAllowedDomain("hole"));
+      // Reused by the query-level features (also on page cache hits)
+      group.headers = headers;
       // Header
       if (isAllowedDomain("header")) {
-        String headword = LingUtils.findHeadWord(group.ex.phrase).toLowerCase();
         for (Map.Entry<String, Integer> entry : headers.entrySet()) {
           String header = entry.getKey();
           //LogInfo.logs("%s %s", header, group.sampleEntities());
@@ -153,13 +66,81 @@ public class FeatureTypeHoleBased extends FeatureType {
                 }
               }
             }
-            if (headerLingData.lemmaTokens.contains(headword)) {
-              group.features.add("header", "match-headword");
-            }
           }
         }
       }
     }
   }
+  
+  /**
+   * The header features that look at the query.
+   * The headers were found when the page-level features were extracted.
+   */
+  protected void extractHeaderMatchFeatures(CandidateGroup group) {
+    if (isAllowedDomain("header")) {
+      Multiset<String> headers = (group.headers != null) ? group.headers : walkAncestors(group, false);
+      String headword = LingUtils.findHeadWord(group.ex.phrase).toLowerCase();
+      for (Map.Entry<String, Integer> entry : headers.entrySet()) {
+        LingData headerLingData = LingData.get(entry.getKey());
+        int n = opts.headerBinary ? 1 : entry.getValue();
+        if (headerLingData.lemmaTokens.contains(headword)) {
+          for (int i = 0; i < n; i++)
+            group.features.add("header", "match-headword");
+        }
+      }
+    }
+  }
+  
+  /**
+   * Walk up the ancestors of the selected nodes and fire the hole features if fireHoleFeatures is true.
+   * Return the headers (the parallel elements at the top holes) found along the way.
+   */
+  protected Multiset<String> walkAncestors(CandidateGroup group, boolean fireHoleFeatures) {
+    Multiset<String> headers = new Multiset<>();
+    group.ex.initAncestorIndex();
+    AncestorLevel level = group.ex.ancestorIndex.getLevel(group);
+    List<Integer> singleAnyIndexStack = new ArrayList<>();
+    for (int ancestorCount = 0; ancestorCount < FeatureType.opts.maxAncestorCount; ancestorCount++) {
+      // The statistics of each level are shared between groups (see AncestorLevel)
+      AncestorLevel.HoleStatistics stats = level.getHoleStatistics();
+      // Fire features
+      if (fireHoleFeatures) {
+        String prefix = opts.holeUseTag ? (stats.parentTag + "/" + stats.currentTag + "-") : "";
+        if (stats.anyAll) group.features.add("hole", prefix + "any-all");
+        if (stats.tagAll) group.features.add("hole", prefix + "tag-all");
+        if (stats.single) group.features.add("hole", prefix + "single");
+        if (stats.anyHoleTop) group.features.add("hole", prefix + "any-hole-top");
+        if (stats.anyHoleMiddle) group.features.add("hole", prefix + "any-hole-middle");
+        if (stats.anyHoleBottom) group.features.add("hole", prefix + "any-hole-bottom");
+        if (stats.tagHoleTop) group.features.add("hole", prefix + "tag-hole-top");
+        if (stats.tagHoleMiddle) group.features.add("hole", prefix + "tag-hole-middle");
+        if (stats.tagHoleBottom) group.features.add("hole", prefix + "tag-hole-bottom");
+      }
+      // AnyIndex
+      singleAnyIndexStack.add(stats.singleAnyIndex);
+      // Header -- the parallel element at the top hole
+      if (isAllowedDomain("header") && stats.anyHoleTop) {
+        List<Integer> indices = new ArrayList<>(singleAnyIndexStack);
+        indices.set(indices.size() - 1, 0);       // Choose the top hole
+        // Get the parallel element
+        KNode node = level.parents.get(0);
+        for (int i = indices.size() - 1; i >= 0; i--) {
+          try {
+            node = node.getChildren().get(indices.get(i));
+          } catch (IndexOutOfBoundsException e) {
+            break;
+          }
+        }
+        if (node.fullText != null && !node.fullText.isEmpty()) {
+          String header = node.fullText;
+          headers.add(header);
+        }
+      }
+      // Go to the next level
+      if (level.parents.isEmpty() || stats.parentTag.equals("html")) break;
+      level = level.getParentLevel();
+    }
+    return headers;
+  }
 
 }
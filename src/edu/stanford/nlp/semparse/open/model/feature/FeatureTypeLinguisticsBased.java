@@ -1,14 +1,19 @@
 package edu.stanford.nlp.semparse.open.model.feature;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.stanford.nlp.semparse.open.ling.BrownClusterTable;
 import edu.stanford.nlp.semparse.open.ling.LingData;
-import edu.stanford.nlp.semparse.open.ling.LingUtils;
+import edu.stanford.nlp.semparse.open.model.FeatureVector;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.util.IntMultiset;
 import edu.stanford.nlp.semparse.open.util.Multiset;
+import fig.basic.LogInfo;
 import fig.basic.Option;
+import fig.exec.Execution;
 
 /**
  * Extract features by looking at linguistic properties
@@ -21,6 +26,9 @@ public class FeatureTypeLinguisticsBased extends FeatureType {
     @Option public boolean lingBinWordPOS = true;
     @Option public boolean lingEntityPOS = false;
     @Option public boolean lingCollapsedPOS = true;
+    @Option(gloss = "Maximum number of (query cluster, entity prefix) features per group (0 = no limit). "
+                  + "Coarser and more frequent prefixes are kept first.")
+    public int clusterPairBudget = 0;
   }
   public static Options opts = new Options();
 
@@ -30,27 +38,40 @@ public class FeatureTypeLinguisticsBased extends FeatureType {
   }
   
   @Override
-  public void extract(CandidateGroup group) {
-    extractLingFeatures(group);
-    extractClusterFeatures(group);
-    //extractFakeWordVectorFeatures(group);
+  public void extract(CandidateGroup group, Scope scope) {
+    // Do nothing
   }
   
-  protected void extractLingFeatures(CandidateGroup group) {
+  @Override
+  public void extractEntityBased(CandidateGroup group, FeatureVector v, Scope scope) {
+    if (scope == Scope.PAGE) {
+      extractLingFeatures(group, v);
+    } else {
+      extractClusterFeatures(group, v);
+      //extractFakeWordVectorFeatures(group, v);
+    }
+  }
+  
+  private final ScratchMultisets scratch = new ScratchMultisets();
+  
+  protected void extractLingFeatures(CandidateGroup group, FeatureVector v) {
     if (isAllowedDomain("ling")) {
       // Counts!
-      Multiset<String> countWordPOS = new Multiset<>(),
-                     countEntityPOS = new Multiset<>(),
-            countEntityCollapsedPOS = new Multiset<>(),
-                    countFirstToken = new Multiset<>(),
-                     countLastToken = new Multiset<>();
-      for (String entity : group.predictedEntities) {
-        LingData lingData = LingData.get(entity);
+      ScratchMultisets.Scratch counts = scratch.get();
+      Multiset<String> countWordPOS = counts.multiset(),
+                     countEntityPOS = counts.multiset(),
+            countEntityCollapsedPOS = counts.multiset(),
+                    countFirstToken = counts.multiset(),
+                     countLastToken = counts.multiset();
+      for (EntityAnalysis analysis : getEntityAnalyses(group)) {
+        LingData lingData = analysis.getLingData();
         if (lingData.length > 0) {
           for (String pos : lingData.posTags) countWordPOS.add(pos);
           // POS
-          countEntityPOS.add(LingUtils.join(lingData.posTags));
-          countEntityCollapsedPOS.add(LingUtils.collapse(lingData.posTags));
+          if (opts.lingEntityPOS)
+            countEntityPOS.add(analysis.getJoinedPOS());
+          if (opts.lingCollapsedPOS)
+            countEntityCollapsedPOS.add(analysis.getCollapsedPOS());
           // Tokens
           if (opts.lingLemmatizedTokens) {
             countFirstToken.add(lingData.lemmaTokens.get(0));
@@ -62,62 +83,145 @@ public class FeatureTypeLinguisticsBased extends FeatureType {
         }
       }
       if (opts.lingWordPOS)
-        addVotingFeatures(group.features, "ling", "word-pos", countWordPOS);
+        addVotingFeatures(v, "ling", "word-pos", countWordPOS);
       if (opts.lingAltWordPOS) {
-        addEntropyFeatures(group.features, "ling", "word-pos", countWordPOS);
-        for (String pos : countWordPOS.elementSet()) {
+        addEntropyFeatures(v, "ling", "word-pos", countWordPOS);
+        for (int slot = 0; slot < countWordPOS.capacity(); slot++) {
+          if (!countWordPOS.isOccupied(slot)) continue;
+          String pos = countWordPOS.keyAt(slot);
           if (opts.lingBinWordPOS) {
-            addPercentFeatures(group.features, "ling", "word-pos = " + pos,
-                countWordPOS.count(pos) * 1.0 / countWordPOS.size());
+            addPercentFeatures(v, "ling", "word-pos = " + pos,
+                countWordPOS.countAt(slot) * 1.0 / countWordPOS.size());
           } else {
-            group.features.add("ling", "word-pos = " + pos);
+            v.add("ling", "word-pos = " + pos);
           }
         }
       }
       if (opts.lingEntityPOS)
-        addVotingFeatures(group.features, "ling", "entity-pos", countEntityPOS);
+        addVotingFeatures(v, "ling", "entity-pos", countEntityPOS);
       if (opts.lingCollapsedPOS)
-        addVotingFeatures(group.features, "ling", "entity-collapsed-pos", countEntityCollapsedPOS);
-      addEntropyFeatures(group.features, "ling", "first-token", countFirstToken);
-      addEntropyFeatures(group.features, "ling", "last-token", countLastToken);
+        addVotingFeatures(v, "ling", "entity-collapsed-pos", countEntityCollapsedPOS);
+      addEntropyFeatures(v, "ling", "first-token", countFirstToken);
+      addEntropyFeatures(v, "ling", "last-token", countLastToken);
     }
   }
   
-  protected void extractClusterFeatures(CandidateGroup group) {
+  protected void extractClusterFeatures(CandidateGroup group, FeatureVector v) {
     if (isAllowedDomain("cluster")) {
-      // Query cluster prefixes 
-      Set<String> queryClusters = new HashSet<>(),
-                 entityPrefixes = new HashSet<>();
-      for (String token : LingData.get(group.ex.phrase).getTokens(true, true)) {
-        queryClusters.addAll(BrownClusterTable.getDefaultClusterPrefixesFromWord(token));
-        queryClusters.add(token);  // Also add the raw token
-      }
+      List<EntityAnalysis> analyses = getEntityAnalyses(group);
+      // Query cluster prefixes
+      int[] queryClusterIds = group.ex.entityAnalysisTable.getQueryClusterIds();
       // Entity cluster
-      Multiset<String> entityTokenClusters = new Multiset<>();
-      for (String entity : group.predictedEntities) {
-        for (String token : LingData.get(entity).tokens) {
-          String cluster = BrownClusterTable.getCluster(token);
-          if (cluster != null) {
-            entityTokenClusters.add(cluster);
-            for (String prefix : BrownClusterTable.getDefaultClusterPrefixes(cluster))
-              entityPrefixes.add(prefix);
-          }
-        }
+      ScratchMultisets.Scratch counts = scratch.get();
+      Multiset<String> entityTokenClusters = counts.multiset();
+      IntMultiset entityPrefixIds = counts.intMultiset();
+      for (EntityAnalysis analysis : analyses) {
+        for (String cluster : analysis.getTokenClusters())
+          entityTokenClusters.add(cluster);
+        for (int prefixId : analysis.getClusterPrefixIds())
+          entityPrefixIds.add(prefixId);
       }
       // Add features
-      for (String queryCluster : queryClusters) {
-        for (String prefix : entityPrefixes) {
-          group.features.add("cluster", "query = " + queryCluster + " | entity ~ " + prefix);
+      int numPairs = queryClusterIds.length * entityPrefixIds.numDistinct();
+      numEntityLists.incrementAndGet();
+      numClusterPairs.addAndGet(numPairs);
+      if (opts.clusterPairBudget > 0 && numPairs > opts.clusterPairBudget) {
+        extractBudgetedClusterPairFeatures(queryClusterIds, entityPrefixIds, v);
+      } else {
+        numFiredClusterPairs.addAndGet(numPairs);
+        for (int queryClusterId : queryClusterIds) {
+          for (int slot = 0; slot < entityPrefixIds.capacity(); slot++) {
+            if (entityPrefixIds.isOccupied(slot))
+              v.addFromString(getClusterFeature(queryClusterId, entityPrefixIds.keyAt(slot)), 1);
+          }
         }
-        // Entity Entropy
-        double normalizedEntropy = getNormalizedEntropy(entityTokenClusters);
-        group.features.add("cluster", "query = " + queryCluster + " | entity-normalized-entropy", normalizedEntropy);
       }
+      // Entity Entropy
+      double normalizedEntropy = getNormalizedEntropy(entityTokenClusters);
+      for (int queryClusterId : queryClusterIds) {
+        v.addFromString(getClusterFeature(queryClusterId, -1), normalizedEntropy);
+      }
+    }
+  }
+  
+  /**
+   * Fire only opts.clusterPairBudget (query cluster, entity prefix) features.
+   * Entity prefixes are taken in order of priority, and each is paired with the query clusters
+   * in order of priority, until the budget runs out.
+   */
+  protected void extractBudgetedClusterPairFeatures(int[] queryClusterIds, IntMultiset entityPrefixIds,
+      FeatureVector v) {
+    Integer[] queryIds = new Integer[queryClusterIds.length];
+    for (int i = 0; i < queryIds.length; i++) queryIds[i] = queryClusterIds[i];
+    Integer[] entityIds = new Integer[entityPrefixIds.numDistinct()];
+    int i = 0;
+    for (int slot = 0; slot < entityPrefixIds.capacity(); slot++)
+      if (entityPrefixIds.isOccupied(slot)) entityIds[i++] = entityPrefixIds.keyAt(slot);
+    Arrays.sort(queryIds, PREFIX_PRIORITY);
+    Arrays.sort(entityIds, PREFIX_PRIORITY);
+    int budget = opts.clusterPairBudget;
+    pairs:
+    for (int entityId : entityIds) {
+      for (int queryId : queryIds) {
+        if (budget-- <= 0) break pairs;
+        v.addFromString(getClusterFeature(queryId, entityId), 1);
+      }
+    }
+    numFiredClusterPairs.addAndGet(Math.min(opts.clusterPairBudget, queryIds.length * entityIds.length));
+  }
+  
+  /** Shorter prefixes first, then more frequent prefixes, then alphabetical order */
+  protected static final Comparator<Integer> PREFIX_PRIORITY = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer o1, Integer o2) {
+      int length1 = BrownClusterTable.getPrefixLength(o1), length2 = BrownClusterTable.getPrefixLength(o2);
+      if (length1 != length2) return length1 < length2 ? -1 : 1;
+      long frequency1 = BrownClusterTable.getPrefixFrequency(o1), frequency2 = BrownClusterTable.getPrefixFrequency(o2);
+      if (frequency1 != frequency2) return frequency1 > frequency2 ? -1 : 1;
+      return BrownClusterTable.prefixIndexer.getString(o1).compareTo(BrownClusterTable.prefixIndexer.getString(o2));
+    }
+  };
+  
+  // Cluster features are computed once for each distinct list of entities in an example
+  // (see FeatureExtractor.getEntityBasedFeatures), so the pairs are counted per entity list, not per group.
+  protected static final AtomicLong numEntityLists = new AtomicLong(),
+      numClusterPairs = new AtomicLong(), numFiredClusterPairs = new AtomicLong();
+  
+  /** Log the statistics since the last call, then reset them */
+  public static void logClusterPairStatistics() {
+    long lists = numEntityLists.getAndSet(0), total = numClusterPairs.getAndSet(0),
+        fired = numFiredClusterPairs.getAndSet(0);
+    LogInfo.logs("Cluster pair features over %d entity lists: fired %d / %d (%d skipped by the budget)",
+        lists, fired, total, total - fired);
+    Execution.putOutput("clusterPairEntityLists", lists);
+    Execution.putOutput("clusterPairsFired", fired);
+    Execution.putOutput("clusterPairsSkipped", total - fired);
+  }
+  
+  private static final Map<Long, String> clusterFeatures = new ConcurrentHashMap<>();
+  
+  /**
+   * Return the feature "cluster :: query = [query cluster] | entity ~ [entity prefix]"
+   * (or "... | entity-normalized-entropy" if entityPrefixId is -1), memoized by the id pair.
+   */
+  protected static String getClusterFeature(int queryClusterId, int entityPrefixId) {
+    long key = ((long) queryClusterId << 32) | (entityPrefixId & 0xffffffffL);
+    String feature = clusterFeatures.get(key);
+    if (feature == null) {
+      String queryCluster = BrownClusterTable.prefixIndexer.getString(queryClusterId);
+      if (entityPrefixId == -1) {
+        feature = FeatureVector.toFeature("cluster", "query = " + queryCluster + " | entity-normalized-entropy");
+      } else {
+        String entityPrefix = BrownClusterTable.prefixIndexer.getString(entityPrefixId);
+        feature = FeatureVector.toFeature("cluster", "query = " + queryCluster + " | entity ~ " + entityPrefix);
+      }
+      clusterFeatures.put(key, feature);
     }
+    return feature;
   }
   
   /** Use to debug the advanced word vector. Basically, this is the slower version. **/
-  protected void extractFakeWordVectorFeatures(CandidateGroup group) {
+  protected void extractFakeWordVectorFeatures(CandidateGroup group, FeatureVector v) {
     if (isAllowedDomain("fake-wordvec")) {
       group.ex.initAveragedWordVector();
       group.initAveragedWordVector();
@@ -126,7 +230,7 @@ public class FeatureTypeLinguisticsBased extends FeatureType {
       if (x == null || y == null) return;
       for (int i = 0; i < x.length; i++) {
         for (int j = 0; j < y.length; j++) {
-          group.features.add("fake-wordvec", "[" + i + "][" + j + "]", x[i] * y[j]);
+          v.add("fake-wordvec", "[" + i + "][" + j + "]", x[i] * y[j]);
         }
       }
     }
@@ -2,10 +2,10 @@ package edu.stanford.nlp.semparse.open.model.feature;
 
 import java.util.*;
 
-import edu.stanford.nlp.semparse.open.ling.FrequencyTable;
-import edu.stanford.nlp.semparse.open.ling.LingUtils;
+import edu.stanford.nlp.semparse.open.model.FeatureVector;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.util.IntMultiset;
 import edu.stanford.nlp.semparse.open.util.Multiset;
 import fig.basic.MapUtils;
 import fig.basic.Option;
@@ -29,42 +29,50 @@ public class FeatureTypeNaiveEntityBased extends FeatureType {
   }
   
   @Override
-  public void extract(CandidateGroup group) {
-    extractEntityFeatures(group);
-    extractDocumentFrequencyFeatures(group);
+  public void extract(CandidateGroup group, Scope scope) {
+    // Do nothing
   }
   
-  protected void  extractEntityFeatures(CandidateGroup group) {
+  @Override
+  public void extractEntityBased(CandidateGroup group, FeatureVector v, Scope scope) {
+    if (scope != Scope.PAGE) return;
+    extractEntityFeatures(group, v);
+    extractDocumentFrequencyFeatures(group, v);
+  }
+  
+  private final ScratchMultisets scratch = new ScratchMultisets();
+  
+  protected void extractEntityFeatures(CandidateGroup group, FeatureVector v) {
     if (isAllowedDomain("entity")) {
-      Multiset<String> countEntity = new Multiset<>(),
-                  countPhraseShape = new Multiset<>(),
-         countCollapsedPhraseShape = new Multiset<>(),
-                    countWordShape = new Multiset<>();
-      Multiset<Integer> countNumWord = new Multiset<>();
-      for (String entity : group.predictedEntities) {
-        countEntity.add(entity);
-        String wordForm = LingUtils.computePhraseShape(entity);
-        countPhraseShape.add(wordForm);
-        String[] wordForms = wordForm.split(" ");
+      ScratchMultisets.Scratch counts = scratch.get();
+      Multiset<String> countEntity = counts.multiset(),
+                  countPhraseShape = counts.multiset(),
+         countCollapsedPhraseShape = counts.multiset(),
+                    countWordShape = counts.multiset();
+      IntMultiset countNumWord = counts.intMultiset();
+      for (EntityAnalysis analysis : getEntityAnalyses(group)) {
+        countEntity.add(analysis.entity);
+        countPhraseShape.add(analysis.getPhraseShape());
+        String[] wordForms = analysis.getWordShapes();
         for (String word : wordForms) {
           countWordShape.add(word);
         }
         countNumWord.add(wordForms.length);
-        countCollapsedPhraseShape.add(LingUtils.collapse(wordForms));
+        countCollapsedPhraseShape.add(analysis.getCollapsedPhraseShape());
       }
       if (opts.useCountEntities)
-        addQuantizedFeatures(group.features, "entity", "num-entities", group.predictedEntities.size());
-      addEntropyFeatures(group.features, "entity", "entity", countEntity);
-      addDuplicationFeatures(group.features, "entity", "entity", countEntity);
+        addQuantizedFeatures(v, "entity", "num-entities", group.predictedEntities.size());
+      addEntropyFeatures(v, "entity", "entity", countEntity);
+      addDuplicationFeatures(v, "entity", "entity", countEntity);
       if (opts.addPhraseShapeFeature)
-        addVotingFeatures(group.features, "entity", "phrase-shape", countPhraseShape);
+        addVotingFeatures(v, "entity", "phrase-shape", countPhraseShape);
       if (opts.addCollapsedPhraseShapeFeature)
-        addVotingFeatures(group.features, "entity", "collapsed-phrase-shape", countCollapsedPhraseShape);
-      addVotingFeatures(group.features, "entity", "word-shape", countWordShape);
+        addVotingFeatures(v, "entity", "collapsed-phrase-shape", countCollapsedPhraseShape);
+      addVotingFeatures(v, "entity", "word-shape", countWordShape);
       if (opts.useDiscreteCountNumWords)
-        addVotingFeatures(group.features, "entity", "num-word", countNumWord);
+        addVotingFeatures(v, "entity", "num-word", countNumWord);
       if (opts.useMeanSDCountNumWords)
-        addMeanDeviationFeatures(group.features, "entity", "num-word", countNumWord);
+        addMeanDeviationFeatures(v, "entity", "num-word", countNumWord);
     }
   }
   
@@ -77,28 +85,24 @@ public class FeatureTypeNaiveEntityBased extends FeatureType {
       "policy", "last", "privacy", "post", "date", "time", "print"));
   
   
-  protected void extractDocumentFrequencyFeatures(CandidateGroup group) {
+  protected void extractDocumentFrequencyFeatures(CandidateGroup group, FeatureVector v) {
     if (isAllowedDomain("token-freq")) {
       // Oracle experiment: use a fixed set of words
       int numTokens = 0, numBadWords = 0, numDigits = 0;
       Map<Integer, Integer> numFrequentWords = new HashMap<>();
-      for (String entity : group.predictedEntities) {
-        for (String token : LingUtils.getAlphaOrNumericTokens(entity)) {
-          numTokens++;
-          for (Map.Entry<Integer, Set<String>> entry : FrequencyTable.topWordsLists.entrySet()) {
-            if (entry.getValue().contains(token)) {
-              MapUtils.incr(numFrequentWords, entry.getKey());
-            }
-          }
-          if (BADWORDS.contains(token)) numBadWords++;
-          if (token.matches("\\d+")) numDigits++;
+      for (EntityAnalysis analysis : getEntityAnalyses(group)) {
+        numTokens += analysis.getAlphaOrNumericTokens().size();
+        numBadWords += analysis.getNumBadWords();
+        numDigits += analysis.getNumDigits();
+        for (Map.Entry<Integer, Integer> entry : analysis.getNumFrequentWords().entrySet()) {
+          MapUtils.incr(numFrequentWords, entry.getKey(), entry.getValue());
         }
       }
-      addPercentFeatures(group.features, "token-freq", "bad-words-ratio", numBadWords * 1.0 / numTokens);
+      addPercentFeatures(v, "token-freq", "bad-words-ratio", numBadWords * 1.0 / numTokens);
       for (Map.Entry<Integer, Integer> entry : numFrequentWords.entrySet()) {
-        addPercentFeatures(group.features, "token-freq", "frequent-" + entry.getKey(), entry.getValue() * 1.0 / numTokens);
+        addPercentFeatures(v, "token-freq", "frequent-" + entry.getKey(), entry.getValue() * 1.0 / numTokens);
       }
-      addPercentFeatures(group.features, "token-freq", "digits-ratio", numDigits * 1.0 / numTokens);
+      addPercentFeatures(v, "token-freq", "digits-ratio", numDigits * 1.0 / numTokens);
     }
   }
 }
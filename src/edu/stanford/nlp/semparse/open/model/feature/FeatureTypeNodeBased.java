@@ -6,6 +6,7 @@ import edu.stanford.nlp.semparse.open.model.FeatureVector;
 import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
 import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
 import edu.stanford.nlp.semparse.open.model.tree.KNode;
+import edu.stanford.nlp.semparse.open.util.IntMultiset;
 import edu.stanford.nlp.semparse.open.util.Multiset;
 import fig.basic.Option;
 
@@ -28,7 +29,8 @@ public class FeatureTypeNodeBased extends FeatureType {
   }
 
   @Override
-  public void extract(CandidateGroup group) {
+  public void extract(CandidateGroup group, Scope scope) {
+    if (scope != Scope.PAGE) return;
     extractSelfOrAncestorsFeatures(group);
     extractNodeRangeFeatures(group);
   }
@@ -37,68 +39,19 @@ public class FeatureTypeNodeBased extends FeatureType {
     if (isAllowedDomain("self-or-ancestors")) {
       FeatureVector v = new FeatureVector();
       // Majority id / class / number of children of the nodes and parents
-      Set<KNode> currentKNodes = new HashSet<>(group.selectedNodes);
+      group.ex.initAncestorIndex();
+      AncestorLevel level = group.ex.ancestorIndex.getLevel(group);
       for (int ancestorCount = 0; ancestorCount < FeatureType.opts.maxAncestorCount; ancestorCount++) {
-        Multiset<String> countTag = new Multiset<>(),
-                          countId = new Multiset<>(),
-                       countClass = new Multiset<>(),
-                 countNumChildren = new Multiset<>();
-        Multiset<Integer> countChildIndex = new Multiset<>();
-        Set<KNode> parents = new HashSet<>();
-        for (KNode node : currentKNodes) {
-          // Properties of the current node
-          countTag.add(node.value);
-          String nodeId = node.getAttribute("id");
-          if (!nodeId.isEmpty())
-            countId.add(nodeId);
-          String nodeClass = node.getAttribute("class");
-          if (!nodeClass.isEmpty())
-            countClass.add(nodeClass);
-          // Properties relating to children
-          List<KNode> children = node.getChildren();
-          int numChildren = children.size();
-          countNumChildren.add((numChildren <= 3) ? "" + numChildren : "many");
-          // Traverse up to parent
-          if (node.parent != null) {
-            countChildIndex.add(node.getChildIndex());
-            parents.add(node.parent);
-          }
-        }
-        if (parents.isEmpty()) break;
-        // Count how many children the parents have
-        int countChildrenOfParents = 0;
-        for (KNode parent : parents) {
-          countChildrenOfParents += parent.countChildren();
-        }
-        double percentChildrenOfParents = currentKNodes.size() * 1.0 / countChildrenOfParents;
-        String domain = "self-or-ancestors";
-        // With indexed prefix
-        if (opts.soaUseIndexedFeatures) {
-          String prefix = "(n-" + ancestorCount + ")-";
-          addVotingFeatures(v, domain, prefix + "tag", countTag);
-          if (opts.soaUseIdClassFeatures) {
-            addVotingFeatures(v, domain, prefix + "id", countId, true);
-            addVotingFeatures(v, domain, prefix + "class", countClass, true);
-          }
-          addVotingFeatures(v, domain, prefix + "num-children", countNumChildren);
-          addVotingFeatures(v, domain, prefix + "child-index", countChildIndex, false, false);
-          addPercentFeatures(v, domain, prefix + "children-of-parent", percentChildrenOfParents);
-          if (parents.size() == 1) v.add(domain, prefix + "same-parent");
-        }
-        // Without indexed prefix
-        if (opts.soaUseNoIndexFeatures) {
-          addVotingFeatures(v, domain, "tag", countTag);
-          if (opts.soaUseIdClassFeatures) {
-            addVotingFeatures(v, domain, "id", countId, true);
-            addVotingFeatures(v, domain, "class", countClass, true);
-          }
-          addVotingFeatures(v, domain, "num-children", countNumChildren);
-          addVotingFeatures(v, domain, "child-index", countChildIndex, false, false);
-          addPercentFeatures(v, domain, "children-of-parent", percentChildrenOfParents);
-          if (parents.size() == 1) v.add(domain, "same-parent");
+        if (level.parents.isEmpty()) break;
+        // Groups that reach the same level (e.g., a group and its cut groups) share its features
+        FeatureVector levelFeatures = level.getSelfOrAncestorsFeatures(ancestorCount);
+        if (levelFeatures == null) {
+          levelFeatures = extractSelfOrAncestorsFeatures(level, ancestorCount);
+          level.setSelfOrAncestorsFeatures(ancestorCount, levelFeatures);
         }
+        v.add(levelFeatures);
         // Traverse up the tree
-        currentKNodes = parents;
+        level = level.getParentLevel();
       }
       // Add features
       if (opts.soaAverage) {
@@ -110,6 +63,45 @@ public class FeatureTypeNodeBased extends FeatureType {
       }
     }
   }
+  
+  /** The self-or-ancestors features of the level, which is the ancestorCount-th ancestor level of a group */
+  protected FeatureVector extractSelfOrAncestorsFeatures(AncestorLevel level, int ancestorCount) {
+    FeatureVector v = new FeatureVector();
+    Multiset<String> countTag = level.getTagCounts(),
+                      countId = level.getIdCounts(),
+                   countClass = level.getClassCounts(),
+             countNumChildren = level.getNumChildrenCounts();
+    IntMultiset countChildIndex = level.getChildIndexCounts();
+    double percentChildrenOfParents = level.getPercentChildrenOfParents();
+    int numParents = level.parents.size();
+    String domain = "self-or-ancestors";
+    // With indexed prefix
+    if (opts.soaUseIndexedFeatures) {
+      String prefix = "(n-" + ancestorCount + ")-";
+      addVotingFeatures(v, domain, prefix + "tag", countTag);
+      if (opts.soaUseIdClassFeatures) {
+        addVotingFeatures(v, domain, prefix + "id", countId, true);
+        addVotingFeatures(v, domain, prefix + "class", countClass, true);
+      }
+      addVotingFeatures(v, domain, prefix + "num-children", countNumChildren);
+      addVotingFeatures(v, domain, prefix + "child-index", countChildIndex, false, false);
+      addPercentFeatures(v, domain, prefix + "children-of-parent", percentChildrenOfParents);
+      if (numParents == 1) v.add(domain, prefix + "same-parent");
+    }
+    // Without indexed prefix
+    if (opts.soaUseNoIndexFeatures) {
+      addVotingFeatures(v, domain, "tag", countTag);
+      if (opts.soaUseIdClassFeatures) {
+        addVotingFeatures(v, domain, "id", countId, true);
+        addVotingFeatures(v, domain, "class", countClass, true);
+      }
+      addVotingFeatures(v, domain, "num-children", countNumChildren);
+      addVotingFeatures(v, domain, "child-index", countChildIndex, false, false);
+      addPercentFeatures(v, domain, "children-of-parent", percentChildrenOfParents);
+      if (numParents == 1) v.add(domain, "same-parent");
+    }
+    return v;
+  }
    
   public void extractNodeRangeFeatures(CandidateGroup group) {
     if (isAllowedDomain("node-range")) {
@@ -26,7 +26,7 @@ public class FeatureTypePathBased extends FeatureType {
   }
   
   @Override
-  public void extract(CandidateGroup group) {
+  public void extract(CandidateGroup group, Scope scope) {
     // Do nothing
   }
   
@@ -34,25 +34,67 @@ public class FeatureTypePathBased extends FeatureType {
     if (isAllowedDomain("path-tail")) {
       TreePattern pattern = candidate.pattern;
       List<PathEntry> path = pattern.getPath();
-      int maxCount = opts.pathMaxAncestorCount > 0 ? opts.pathMaxAncestorCount : FeatureType.opts.maxAncestorCount;
-      for (int ancestorCount = 1; ancestorCount <= maxCount; ancestorCount++) {
-        if (ancestorCount <= path.size()) {
-          if (opts.pathUsePathSuffix)
-            candidate.features.add("path-tail", PathUtils.getXPathSuffixStringNoIndex(path, ancestorCount));
-          PathEntry entry = path.get(path.size() - ancestorCount);
-          if (opts.pathFeatureUsePrefix) {
-            String prefix = "(n-" + ancestorCount + ")-";
-            candidate.features.add("path-tail", prefix + "tag = " + entry.tag);
-            candidate.features.add("path-tail", prefix + "indexed = " + (entry.index != -1));
-            candidate.features.add("path-tail", prefix + "tag-indexed = " + entry.tag + " " + (entry.index != -1));
-          } else {
-            candidate.features.add("path-tail", "tag = " + entry.tag);
-            candidate.features.add("path-tail", "indexed = " + (entry.index != -1));
-            candidate.features.add("path-tail", "tag-indexed = " + entry.tag + " " + (entry.index != -1));
-          }
+      int numLevels = getNumPathTailLevels(path.size());
+      for (int ancestorCount = 1; ancestorCount <= numLevels; ancestorCount++) {
+        if (opts.pathUsePathSuffix)
+          candidate.features.add("path-tail", PathUtils.getXPathSuffixStringNoIndex(path, ancestorCount));
+        PathEntry entry = path.get(path.size() - ancestorCount);
+        if (opts.pathFeatureUsePrefix) {
+          String prefix = "(n-" + ancestorCount + ")-";
+          candidate.features.add("path-tail", prefix + "tag = " + entry.tag);
+          candidate.features.add("path-tail", prefix + "indexed = " + (entry.index != -1));
+          candidate.features.add("path-tail", prefix + "tag-indexed = " + entry.tag + " " + (entry.index != -1));
+        } else {
+          candidate.features.add("path-tail", "tag = " + entry.tag);
+          candidate.features.add("path-tail", "indexed = " + (entry.index != -1));
+          candidate.features.add("path-tail", "tag-indexed = " + entry.tag + " " + (entry.index != -1));
         }
       }
     }
   }
 
+  // ============================================================
+  // Structure of path-tail features
+  // ============================================================
+  
+  /** Number of levels (ancestor counts) with path-tail features for a path of the given length */
+  public static int getNumPathTailLevels(int pathLength) {
+    int maxCount = opts.pathMaxAncestorCount > 0 ? opts.pathMaxAncestorCount : FeatureType.opts.maxAncestorCount;
+    return Math.min(maxCount, pathLength);
+  }
+  
+  /**
+   * Each level of a path tail has at most one path-tail feature of each kind:
+   * 0 = path suffix, 1 = tag, 2 = indexed, 3 = tag-indexed.
+   */
+  public static final int NUM_PATH_TAIL_KINDS = 4;
+  
+  /**
+   * Return {level, kind} of a path-tail feature name (without the domain), or null if the name is
+   * not recognized. The level is 0 if the name does not depend on the level (pathFeatureUsePrefix = false).
+   */
+  public static int[] parsePathTailFeature(String name) {
+    if (name.startsWith("/")) {
+      int level = 0;
+      for (int i = 0; i < name.length(); i++)
+        if (name.charAt(i) == '/') level++;
+      return new int[] {level, 0};
+    }
+    int level = 0;
+    if (name.startsWith("(n-")) {
+      int end = name.indexOf(")-");
+      if (end < 0) return null;
+      try {
+        level = Integer.parseInt(name.substring(3, end));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      name = name.substring(end + 2);
+    }
+    if (name.startsWith("tag = ")) return new int[] {level, 1};
+    if (name.startsWith("indexed = ")) return new int[] {level, 2};
+    if (name.startsWith("tag-indexed = ")) return new int[] {level, 3};
+    return null;
+  }
+
 }
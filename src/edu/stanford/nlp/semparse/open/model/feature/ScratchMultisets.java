@@ -0,0 +1,49 @@
+package edu.stanford.nlp.semparse.open.model.feature;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.util.IntMultiset;
+import edu.stanford.nlp.semparse.open.util.Multiset;
+
+/**
+ * Multisets reused across groups, so that counting entity properties does not allocate.
+ * Feature types are shared between threads, so each thread has its own multisets.
+ *
+ * Each feature type owns one ScratchMultisets. For each group, call get() and then take
+ * the multisets in a fixed order; the multisets taken for the previous group are reused.
+ */
+class ScratchMultisets {
+
+  static class Scratch {
+    private final List<Multiset<String>> multisets = new ArrayList<>();
+    private final List<IntMultiset> intMultisets = new ArrayList<>();
+    private int numMultisets, numIntMultisets;
+
+    /** Return an empty multiset (valid until the next get()) */
+    Multiset<String> multiset() {
+      if (numMultisets == multisets.size()) multisets.add(new Multiset<String>());
+      Multiset<String> multiset = multisets.get(numMultisets++);
+      multiset.clear();
+      return multiset;
+    }
+
+    /** Return an empty int multiset (valid until the next get()) */
+    IntMultiset intMultiset() {
+      if (numIntMultisets == intMultisets.size()) intMultisets.add(new IntMultiset());
+      IntMultiset multiset = intMultisets.get(numIntMultisets++);
+      multiset.clear();
+      return multiset;
+    }
+  }
+
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override protected Scratch initialValue() { return new Scratch(); }
+  };
+
+  /** Release the multisets of the current thread for reuse */
+  Scratch get() {
+    Scratch s = scratch.get();
+    s.numMultisets = s.numIntMultisets = 0;
+    return s;
+  }
+}
@@ -1,6 +1,7 @@
 package edu.stanford.nlp.semparse.open.model.tree;
 
 import java.util.*;
+import java.util.regex.Pattern;
 
 import fig.basic.LogInfo;
 import fig.basic.StrUtils;
@@ -37,6 +38,10 @@ public class KNode {
   
   // timestamps of depth first search (used for firing range features) 
   public int timestampIn, timestampOut, timestampInCollapsed;
+  
+  // id and class attributes, parsed when the attribute nodes are created
+  private String id = "", classes = "", normalizedId = "";
+  private String[] normalizedClasses = NO_CLASSES;
 
   public KNode(KNode parent, Type type, String value) {
     this(parent, type, value, "");
@@ -56,6 +61,7 @@ public class KNode {
       this.depth = this.parent.depth + 1;
       if (type == Type.ATTR) {
         this.parent.attributes.add(this);
+        this.parent.parseAttribute(value, fullText);
       } else {
         this.parent.children.add(this);
       }
@@ -89,6 +95,61 @@ public class KNode {
     return attributeNode;
   }
   
+  // Parsed attributes
+  
+  private static final String[] NO_CLASSES = new String[0];
+  private static final Pattern DIGITS = Pattern.compile("[0-9]+"), WHITESPACES = Pattern.compile("\\s+");
+  
+  /** Same as replaceAll("[0-9]+", "0") */
+  public static String normalizeDigits(String s) {
+    return DIGITS.matcher(s).replaceAll("0");
+  }
+  
+  private void parseAttribute(String attributeName, String attributeValue) {
+    if (attributeValue == null || !isFirstAttribute(attributeName)) return;
+    if (attributeName.equals("id")) {
+      id = attributeValue.intern();
+      normalizedId = normalizeDigits(attributeValue).intern();
+    } else if (attributeName.equals("class")) {
+      classes = attributeValue.intern();
+      if (attributeValue.isEmpty()) {
+        normalizedClasses = NO_CLASSES;
+      } else {
+        String[] tokens = WHITESPACES.split(attributeValue);
+        for (int i = 0; i < tokens.length; i++)
+          tokens[i] = normalizeDigits(tokens[i]).intern();
+        normalizedClasses = tokens;
+      }
+    }
+  }
+  
+  /** Whether the last added attribute is the first one with the name (getAttribute returns the first one) */
+  private boolean isFirstAttribute(String attributeName) {
+    for (int i = 0; i < attributes.size() - 1; i++)
+      if (attributes.get(i).value.equals(attributeName)) return false;
+    return true;
+  }
+  
+  /** Same as getAttribute("id") */
+  public String getId() {
+    return id;
+  }
+  
+  /** Same as getAttribute("id").replaceAll("[0-9]+", "0") */
+  public String getNormalizedId() {
+    return normalizedId;
+  }
+  
+  /** Same as getAttribute("class") */
+  public String getClasses() {
+    return classes;
+  }
+  
+  /** Same as each getAttribute("class").split("\\s+") replaceAll("[0-9]+", "0") */
+  public String[] getNormalizedClasses() {
+    return normalizedClasses;
+  }
+  
   // Getters
   
   public List<KNode> getChildren() {
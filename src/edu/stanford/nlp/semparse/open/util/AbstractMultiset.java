@@ -0,0 +1,88 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import java.util.Arrays;
+
+/**
+ * Base class of the open-addressing multisets (Multiset and IntMultiset).
+ * 
+ * Counts are stored in a primitive array, so adding an entry does not allocate.
+ * The entries can be iterated over by slot:
+ * 
+ *   for (int slot = 0; slot < multiset.capacity(); slot++)
+ *     if (multiset.isOccupied(slot)) ... multiset.countAt(slot) ...
+ * 
+ * The iteration order is arbitrary. A multiset can be cleared and reused,
+ * and entries can be removed (see remove).
+ */
+public abstract class AbstractMultiset {
+
+  public static final int DEFAULT_CAPACITY = 8;
+  
+  protected int[] counts;
+  protected int size = 0, numDistinct = 0;
+  
+  protected AbstractMultiset(int capacity) {
+    counts = new int[capacity];
+  }
+  
+  protected AbstractMultiset(AbstractMultiset other) {
+    counts = other.counts.clone();
+    size = other.size;
+    numDistinct = other.numDistinct;
+  }
+  
+  /** Total count of all entries */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+  
+  /** Number of distinct entries */
+  public int numDistinct() {
+    return numDistinct;
+  }
+  
+  public int capacity() {
+    return counts.length;
+  }
+  
+  public abstract boolean isOccupied(int slot);
+  
+  public int countAt(int slot) {
+    return counts[slot];
+  }
+  
+  /** String representation of the entry at the slot (used for feature names) */
+  public abstract String keyStringAt(int slot);
+  
+  public void clear() {
+    if (numDistinct > 0) {
+      Arrays.fill(counts, 0);
+      clearKeys();
+    }
+    size = numDistinct = 0;
+  }
+  
+  protected abstract void clearKeys();
+  
+  /** Spread the bits of the hash code (same as java.util.HashMap) */
+  protected static int mix(int h) {
+    h ^= (h >>> 20) ^ (h >>> 12);
+    return h ^ (h >>> 7) ^ (h >>> 4);
+  }
+  
+  /**
+   * Whether the home slot of an entry lies cyclically in (hole, slot].
+   * If so, the entry at slot cannot be moved into the hole during deletion.
+   */
+  protected static boolean isBetween(int hole, int home, int slot) {
+    return hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+  }
+  
+  protected boolean needsResize() {
+    return (numDistinct + 1) * 2 > counts.length;
+  }
+}
@@ -0,0 +1,42 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Write and read strings in a binary stream, writing each distinct string only once.
+ *
+ * The first occurrence of a string is written in full (UTF-8); later occurrences are
+ * written as the index of the first one. The reader must read the strings in the same order.
+ * Strings read back are interned.
+ */
+public class BinaryStringTable {
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final List<String> strings = new ArrayList<>();
+
+  public void write(DataOutput out, String s) throws IOException {
+    Integer id = ids.get(s);
+    if (id != null) {
+      out.writeInt(id);
+    } else {
+      ids.put(s, ids.size());
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(-1);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  public String read(DataInput in) throws IOException {
+    int id = in.readInt();
+    if (id != -1) return strings.get(id);
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    String s = new String(bytes, StandardCharsets.UTF_8).intern();
+    strings.add(s);
+    return s;
+  }
+}
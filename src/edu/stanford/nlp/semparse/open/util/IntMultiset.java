@@ -0,0 +1,119 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import java.util.Arrays;
+
+/**
+ * A Multiset of ints backed by an open-addressing hash table (no boxing).
+ */
+public class IntMultiset extends AbstractMultiset {
+  protected int[] keys;
+  protected boolean[] occupied;
+
+  public IntMultiset() {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /** @param capacity  must be a power of 2 */
+  public IntMultiset(int capacity) {
+    super(capacity);
+    keys = new int[capacity];
+    occupied = new boolean[capacity];
+  }
+  
+  /** Copy constructor */
+  public IntMultiset(IntMultiset other) {
+    super(other);
+    keys = other.keys.clone();
+    occupied = other.occupied.clone();
+  }
+  
+  private int findSlot(int entry) {
+    int mask = keys.length - 1, slot = mix(entry) & mask;
+    while (occupied[slot] && keys[slot] != entry)
+      slot = (slot + 1) & mask;
+    return slot;
+  }
+  
+  private void resize() {
+    int[] oldKeys = keys, oldCounts = counts;
+    boolean[] oldOccupied = occupied;
+    keys = new int[oldKeys.length * 2];
+    counts = new int[oldCounts.length * 2];
+    occupied = new boolean[oldOccupied.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldOccupied[i]) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+        occupied[slot] = true;
+      }
+    }
+  }
+
+  public void add(int entry) {
+    add(entry, 1);
+  }
+  
+  public void add(int entry, int incr) {
+    if (needsResize()) resize();
+    int slot = findSlot(entry);
+    if (!occupied[slot]) {
+      keys[slot] = entry;
+      occupied[slot] = true;
+      numDistinct++;
+    }
+    counts[slot] += incr;
+    size += incr;
+  }
+
+  /**
+   * Decrease the count of the entry by decr. The entry is removed when its count reaches 0.
+   * The count must not become negative.
+   */
+  public void remove(int entry, int decr) {
+    int slot = findSlot(entry);
+    if (!occupied[slot] || counts[slot] < decr)
+      throw new IllegalArgumentException("Cannot remove " + decr + " of " + entry);
+    counts[slot] -= decr;
+    size -= decr;
+    if (counts[slot] > 0) return;
+    numDistinct--;
+    // Backward-shift deletion: move later entries of the probe sequence into the hole
+    int mask = keys.length - 1, hole = slot;
+    for (int i = (hole + 1) & mask; occupied[i]; i = (i + 1) & mask) {
+      if (isBetween(hole, mix(keys[i]) & mask, i)) continue;
+      keys[hole] = keys[i];
+      counts[hole] = counts[i];
+      hole = i;
+    }
+    occupied[hole] = false;
+    counts[hole] = 0;
+  }
+
+  public boolean contains(int entry) {
+    return occupied[findSlot(entry)];
+  }
+
+  public int count(int entry) {
+    return counts[findSlot(entry)];
+  }
+  
+  @Override
+  public boolean isOccupied(int slot) {
+    return occupied[slot];
+  }
+  
+  public int keyAt(int slot) {
+    return keys[slot];
+  }
+  
+  @Override
+  public String keyStringAt(int slot) {
+    return Integer.toString(keys[slot]);
+  }
+  
+  @Override
+  protected void clearKeys() {
+    Arrays.fill(occupied, false);
+  }
+}
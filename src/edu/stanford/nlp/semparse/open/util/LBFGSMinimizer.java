@@ -0,0 +1,199 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import fig.basic.Fmt;
+import fig.basic.LogInfo;
+
+/**
+ * Minimize f(x) + l1 * |x|_1 for a smooth function f using L-BFGS,
+ * or OWL-QN (Andrew and Gao, 2007) when l1 > 0.
+ *
+ * Stops after maxIters iterations, when the relative decrease of the objective in one iteration
+ * falls below tolerance, when the line search fails, or when the function asks to stop.
+ */
+public class LBFGSMinimizer {
+
+  public interface Function {
+    /** Return f(x) and store the gradient of f at x in gradient */
+    public double valueAt(double[] x, double[] gradient);
+
+    /** Called after each iteration with the current point. Return false to stop. */
+    public boolean iterationDone(int iter, double[] x, double value);
+  }
+
+  public static final double ARMIJO_C = 1e-4;
+  public static final int MAX_LINE_SEARCH_STEPS = 30;
+
+  final int historySize, maxIters;
+  final double tolerance, l1;
+
+  public LBFGSMinimizer(int historySize, int maxIters, double tolerance, double l1) {
+    this.historySize = historySize;
+    this.maxIters = maxIters;
+    this.tolerance = tolerance;
+    this.l1 = l1;
+  }
+
+  // History of (s, y, 1 / s.y) with s = x_{k+1} - x_k and y = grad_{k+1} - grad_k,
+  // stored in ring buffers: the k-th oldest entry is at historyIndex(k)
+  private double[][] sHistory, yHistory;
+  private double[] rhoHistory;
+  private int historyStart, historyLength;
+
+  private int historyIndex(int k) {
+    return (historyStart + k) % historySize;
+  }
+
+  /**
+   * Minimize starting from x (modified in place). Return the final objective value.
+   */
+  public double minimize(Function function, double[] x) {
+    int n = x.length;
+    double[] gradient = new double[n], newGradient = new double[n];
+    double[] newX = new double[n], direction = new double[n], pseudoGradient = new double[n];
+    double[] s = new double[n], y = new double[n];
+    double value = function.valueAt(x, gradient) + l1 * l1Norm(x);
+    LogInfo.logs("Initial objective = %s", Fmt.D(value));
+    sHistory = new double[historySize][];
+    yHistory = new double[historySize][];
+    rhoHistory = new double[historySize];
+    historyStart = historyLength = 0;
+
+    for (int iter = 1; iter <= maxIters; iter++) {
+      computePseudoGradient(x, gradient, pseudoGradient);
+      double pgNorm = Math.sqrt(dot(pseudoGradient, pseudoGradient));
+      if (pgNorm == 0) {
+        LogInfo.logs("Zero gradient; stop");
+        break;
+      }
+      computeDirection(pseudoGradient, direction);
+      // OWL-QN: do not move against the pseudo-gradient
+      if (l1 > 0) {
+        for (int i = 0; i < n; i++)
+          if (direction[i] * pseudoGradient[i] >= 0) direction[i] = 0;
+      }
+      // Backtracking line search
+      double step = (historyLength == 0) ? 1 / pgNorm : 1;
+      double newValue = Double.NaN;
+      boolean found = false;
+      for (int t = 0; t < MAX_LINE_SEARCH_STEPS; t++) {
+        for (int i = 0; i < n; i++) {
+          newX[i] = x[i] + step * direction[i];
+          // OWL-QN: stay in the orthant of x (or of -pseudoGradient where x is 0)
+          if (l1 > 0) {
+            double orthant = x[i] != 0 ? x[i] : -pseudoGradient[i];
+            if (newX[i] * orthant <= 0) newX[i] = 0;
+          }
+        }
+        newValue = function.valueAt(newX, newGradient) + l1 * l1Norm(newX);
+        double expectedDecrease = 0;
+        for (int i = 0; i < n; i++)
+          expectedDecrease += pseudoGradient[i] * (newX[i] - x[i]);
+        if (newValue <= value + ARMIJO_C * expectedDecrease) {
+          found = true;
+          break;
+        }
+        step *= 0.5;
+      }
+      if (!found) {
+        LogInfo.logs("Line search failed; stop");
+        break;
+      }
+      // Update history (the arrays of the evicted entry are reused for the next s and y)
+      for (int i = 0; i < n; i++) {
+        s[i] = newX[i] - x[i];
+        y[i] = newGradient[i] - gradient[i];
+      }
+      double sy = dot(s, y);
+      if (sy > 0 && historySize > 0) {
+        int slot;
+        if (historyLength == historySize) {
+          slot = historyStart;
+          historyStart = historyIndex(1);
+        } else {
+          slot = historyIndex(historyLength++);
+        }
+        double[] oldS = sHistory[slot], oldY = yHistory[slot];
+        sHistory[slot] = s; yHistory[slot] = y; rhoHistory[slot] = 1 / sy;
+        s = (oldS != null) ? oldS : new double[n];
+        y = (oldY != null) ? oldY : new double[n];
+      }
+      double decrease = (value - newValue) / Math.max(Math.abs(value), 1e-10);
+      System.arraycopy(newX, 0, x, 0, n);
+      System.arraycopy(newGradient, 0, gradient, 0, n);
+      value = newValue;
+      LogInfo.logs("Iteration %d: objective = %s (step = %s)", iter, Fmt.D(value), Fmt.D(step));
+      if (!function.iterationDone(iter, x, value)) break;
+      if (decrease < tolerance) {
+        LogInfo.logs("Relative decrease %s < %s; stop", Fmt.D(decrease), Fmt.D(tolerance));
+        break;
+      }
+    }
+    return value;
+  }
+
+  /**
+   * The gradient of f + l1 * |x|_1 if it exists; otherwise the element of the subdifferential
+   * with the smallest magnitude.
+   */
+  private void computePseudoGradient(double[] x, double[] gradient, double[] pseudoGradient) {
+    for (int i = 0; i < x.length; i++) {
+      if (l1 == 0) {
+        pseudoGradient[i] = gradient[i];
+      } else if (x[i] > 0) {
+        pseudoGradient[i] = gradient[i] + l1;
+      } else if (x[i] < 0) {
+        pseudoGradient[i] = gradient[i] - l1;
+      } else if (gradient[i] + l1 < 0) {
+        pseudoGradient[i] = gradient[i] + l1;
+      } else if (gradient[i] - l1 > 0) {
+        pseudoGradient[i] = gradient[i] - l1;
+      } else {
+        pseudoGradient[i] = 0;
+      }
+    }
+  }
+
+  /** Two-loop recursion: direction = - H * gradient */
+  private void computeDirection(double[] gradient, double[] direction) {
+    int m = historyLength;
+    double[] alpha = new double[m];
+    for (int i = 0; i < gradient.length; i++)
+      direction[i] = -gradient[i];
+    for (int k = m - 1; k >= 0; k--) {
+      int j = historyIndex(k);
+      alpha[k] = rhoHistory[j] * dot(sHistory[j], direction);
+      axpy(-alpha[k], yHistory[j], direction);
+    }
+    if (m > 0) {
+      int last = historyIndex(m - 1);
+      double[] y = yHistory[last];
+      double gamma = 1 / (rhoHistory[last] * dot(y, y));
+      for (int i = 0; i < direction.length; i++)
+        direction[i] *= gamma;
+    }
+    for (int k = 0; k < m; k++) {
+      int j = historyIndex(k);
+      double beta = rhoHistory[j] * dot(yHistory[j], direction);
+      axpy(alpha[k] - beta, sHistory[j], direction);
+    }
+  }
+
+  private static double dot(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++)
+      sum += a[i] * b[i];
+    return sum;
+  }
+
+  private static void axpy(double a, double[] x, double[] y) {
+    for (int i = 0; i < x.length; i++)
+      y[i] += a * x[i];
+  }
+
+  private static double l1Norm(double[] x) {
+    double sum = 0;
+    for (double v : x)
+      sum += Math.abs(v);
+    return sum;
+  }
+}
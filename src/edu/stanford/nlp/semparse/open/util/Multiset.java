@@ -2,58 +2,147 @@ package edu.stanford.nlp.semparse.open.util;
 
 import java.util.*;
 
-public class Multiset<T> {
-  protected final HashMap<T, Integer> map = new HashMap<>();
-  protected int size = 0;
+/**
+ * A Multiset backed by an open-addressing hash table with primitive counts.
+ * The null entry is allowed (stored as NULL_KEY).
+ */
+public class Multiset<T> extends AbstractMultiset {
+  // Stands for the null entry in keys (null marks an empty slot)
+  private static final Object NULL_KEY = new Object();
+  
+  protected Object[] keys;
+
+  public Multiset() {
+    this(DEFAULT_CAPACITY);
+  }
+  
+  /** @param capacity  must be a power of 2 */
+  public Multiset(int capacity) {
+    super(capacity);
+    keys = new Object[capacity];
+  }
+  
+  /** Copy constructor */
+  public Multiset(Multiset<T> other) {
+    super(other);
+    keys = other.keys.clone();
+  }
+  
+  private static Object toKey(Object entry) {
+    return entry == null ? NULL_KEY : entry;
+  }
+  
+  /** Return the slot of the key, or the empty slot where it would be added */
+  private int findSlot(Object entry) {
+    int mask = keys.length - 1, slot = mix(entry.hashCode()) & mask;
+    while (true) {
+      Object key = keys[slot];
+      if (key == null || key == entry || key.equals(entry)) return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+  
+  private void resize() {
+    Object[] oldKeys = keys;
+    int[] oldCounts = counts;
+    keys = new Object[oldKeys.length * 2];
+    counts = new int[oldCounts.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = findSlot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
 
   public void add(T entry) {
-    Integer count = map.get(entry);
-    if (count == null)
-      count = 0;
-    map.put(entry, count + 1);
-    size++;
+    add(entry, 1);
   }
   
   public void add(T entry, int incr) {
-    Integer count = map.get(entry);
-    if (count == null)
-      count = 0;
-    map.put(entry, count + incr);
+    if (needsResize()) resize();
+    Object key = toKey(entry);
+    int slot = findSlot(key);
+    if (keys[slot] == null) {
+      keys[slot] = key;
+      numDistinct++;
+    }
+    counts[slot] += incr;
     size += incr;
   }
 
+  /**
+   * Decrease the count of the entry by decr. The entry is removed when its count reaches 0.
+   * The count must not become negative.
+   */
+  public void remove(T entry, int decr) {
+    int slot = findSlot(toKey(entry));
+    if (keys[slot] == null || counts[slot] < decr)
+      throw new IllegalArgumentException("Cannot remove " + decr + " of " + entry);
+    counts[slot] -= decr;
+    size -= decr;
+    if (counts[slot] > 0) return;
+    numDistinct--;
+    // Backward-shift deletion: move later entries of the probe sequence into the hole
+    int mask = keys.length - 1, hole = slot;
+    for (int i = (hole + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+      if (isBetween(hole, mix(keys[i].hashCode()) & mask, i)) continue;
+      keys[hole] = keys[i];
+      counts[hole] = counts[i];
+      hole = i;
+    }
+    keys[hole] = null;
+    counts[hole] = 0;
+  }
+
   public boolean contains(T entry) {
-    return map.containsKey(entry);
+    return keys[findSlot(toKey(entry))] != null;
   }
 
   public int count(T entry) {
-    Integer count = map.get(entry);
-    if (count == null)
-      count = 0;
-    return count;
+    return counts[findSlot(toKey(entry))];
   }
-
-  public Set<T> elementSet() {
-    return map.keySet();
+  
+  @Override
+  public boolean isOccupied(int slot) {
+    return keys[slot] != null;
   }
-
-  public Set<Map.Entry<T, Integer>> entrySet() {
-    return map.entrySet();
+  
+  @SuppressWarnings("unchecked")
+  public T keyAt(int slot) {
+    return keys[slot] == NULL_KEY ? null : (T) keys[slot];
+  }
+  
+  @Override
+  public String keyStringAt(int slot) {
+    return String.valueOf(keyAt(slot));
+  }
+  
+  @Override
+  protected void clearKeys() {
+    Arrays.fill(keys, null);
   }
 
-  public int size() {
-    return size;
+  public Set<T> elementSet() {
+    Set<T> answer = new LinkedHashSet<>();
+    for (int i = 0; i < keys.length; i++)
+      if (keys[i] != null) answer.add(keyAt(i));
+    return answer;
   }
 
-  public boolean isEmpty() {
-    return size == 0;
+  public Set<Map.Entry<T, Integer>> entrySet() {
+    Set<Map.Entry<T, Integer>> answer = new LinkedHashSet<>();
+    for (int i = 0; i < keys.length; i++)
+      if (keys[i] != null) answer.add(new AbstractMap.SimpleImmutableEntry<>(keyAt(i), counts[i]));
+    return answer;
   }
   
   public Multiset<T> getPrunedByCount(int minCount) {
     Multiset<T> pruned = new Multiset<>();
-    for (Map.Entry<T, Integer> entry : map.entrySet()) {
-      if (entry.getValue() >= minCount)
-        pruned.add(entry.getKey(), entry.getValue());
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null && counts[i] >= minCount)
+        pruned.add(keyAt(i), counts[i]);
     }
     return pruned;
   }
@@ -1,7 +1,9 @@
 package edu.stanford.nlp.semparse.open.util;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -39,6 +41,43 @@ public class Parallelizer {
     LogInfo.end_threads();
   }
   
+  /**
+   * Same as run(tasks), but if a task throws an exception, rethrow it after all tasks have finished
+   * (so that the caller does not continue with the results of a partial run).
+   */
+  public static void runAll(List<Runnable> tasks) {
+    ExecutorService service = Executors.newFixedThreadPool(getNumThreads());
+    try {
+      runAll(service, tasks);
+    } finally {
+      service.shutdown();
+    }
+  }
+  
+  /**
+   * Same as runAll(tasks) on the given thread pool, which is not shut down
+   * (so that a pool can be reused for many small batches of tasks).
+   */
+  public static void runAll(ExecutorService service, List<Runnable> tasks) {
+    List<Callable<Object>> callables = new ArrayList<>();
+    for (Runnable task : tasks)
+      callables.add(Executors.callable(task));
+    LogInfo.begin_threads();
+    try {
+      for (Future<Object> result : service.invokeAll(callables))
+        result.get();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new RuntimeException(cause);
+    } finally {
+      LogInfo.end_threads();
+    }
+  }
+  
   public static <T, S extends Callable<T>> List<Future<T>> runAndReturnStuff(List<S> tasks) {
     LogInfo.begin_threads();
     List<Future<T>> results = null;
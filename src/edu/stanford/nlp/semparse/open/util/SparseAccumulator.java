@@ -0,0 +1,55 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import java.util.Arrays;
+
+/**
+ * A reusable sparse vector indexed by int ids (e.g., feature ids).
+ *
+ * Values are stored in a dense array, and the ids that have been touched are listed in order of
+ * first touch, so that iterating and clearing only cost the number of touched ids.
+ * An id is touched by add() even if the added value is 0.
+ */
+public class SparseAccumulator {
+  private double[] values = new double[16];
+  private boolean[] isTouched = new boolean[16];
+  private int[] touched = new int[16];
+  private int numTouched = 0;
+
+  public void add(int id, double value) {
+    if (id >= values.length) {
+      int capacity = Math.max(id + 1, values.length * 2);
+      values = Arrays.copyOf(values, capacity);
+      isTouched = Arrays.copyOf(isTouched, capacity);
+    }
+    if (!isTouched[id]) {
+      isTouched[id] = true;
+      if (numTouched == touched.length)
+        touched = Arrays.copyOf(touched, numTouched * 2);
+      touched[numTouched++] = id;
+    }
+    values[id] += value;
+  }
+
+  /** Number of touched ids */
+  public int size() {
+    return numTouched;
+  }
+
+  /** The k-th touched id (0 <= k < size()) */
+  public int idAt(int k) {
+    return touched[k];
+  }
+
+  /** The value of the k-th touched id (0 <= k < size()) */
+  public double valueAt(int k) {
+    return values[touched[k]];
+  }
+
+  public void clear() {
+    for (int k = 0; k < numTouched; k++) {
+      values[touched[k]] = 0;
+      isTouched[touched[k]] = false;
+    }
+    numTouched = 0;
+  }
+}
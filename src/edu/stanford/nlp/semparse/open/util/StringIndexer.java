@@ -0,0 +1,42 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe bidirectional map between strings and consecutive int ids (0, 1, 2, ...).
+ */
+public class StringIndexer {
+  private final Map<String, Integer> indices = new ConcurrentHashMap<>();
+  private final List<String> strings = new ArrayList<>();
+
+  /** Return the id of the string, adding the string if it is not present */
+  public int getIndex(String s) {
+    Integer index = indices.get(s);
+    if (index == null) {
+      synchronized (this) {
+        index = indices.get(s);
+        if (index == null) {
+          index = strings.size();
+          strings.add(s);
+          indices.put(s, index);
+        }
+      }
+    }
+    return index;
+  }
+
+  /** Return the id of the string, or -1 if it is not present */
+  public int indexOf(String s) {
+    Integer index = indices.get(s);
+    return index == null ? -1 : index;
+  }
+
+  public synchronized String getString(int index) {
+    return strings.get(index);
+  }
+
+  public int size() {
+    return indices.size();
+  }
+}
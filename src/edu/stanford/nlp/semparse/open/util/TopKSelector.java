@@ -0,0 +1,63 @@
+package edu.stanford.nlp.semparse.open.util;
+
+/**
+ * Select the indices of the k highest scores with a bounded min-heap of primitive ints.
+ *
+ * Ties are broken in favor of smaller indices, so the result is the same as the first k entries
+ * of a stable sort by decreasing score (Double.compare order).
+ */
+public class TopKSelector {
+
+  /**
+   * Return the indices of the min(k, scores.length) highest scores, sorted by decreasing score.
+   */
+  public static int[] select(double[] scores, int k) {
+    int size = Math.min(k, scores.length);
+    if (size <= 0) return new int[0];
+    int[] heap = new int[size];
+    int heapSize = 0;
+    for (int i = 0; i < scores.length; i++) {
+      if (heapSize < size) {
+        // Sift up
+        int pos = heapSize++;
+        while (pos > 0) {
+          int parent = (pos - 1) / 2;
+          if (!isWorse(scores, i, heap[parent])) break;
+          heap[pos] = heap[parent];
+          pos = parent;
+        }
+        heap[pos] = i;
+      } else if (isWorse(scores, heap[0], i)) {
+        siftDown(scores, heap, heapSize, i);
+      }
+    }
+    // Pop the worst one repeatedly
+    int[] answer = new int[size];
+    for (int j = size - 1; j >= 0; j--) {
+      answer[j] = heap[0];
+      heapSize--;
+      if (heapSize > 0) siftDown(scores, heap, heapSize, heap[heapSize]);
+    }
+    return answer;
+  }
+
+  /** Place the index at the root and restore the heap property */
+  private static void siftDown(double[] scores, int[] heap, int heapSize, int index) {
+    int pos = 0;
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= heapSize) break;
+      if (child + 1 < heapSize && isWorse(scores, heap[child + 1], heap[child])) child++;
+      if (!isWorse(scores, heap[child], index)) break;
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = index;
+  }
+
+  /** Whether index a ranks below index b */
+  private static boolean isWorse(double[] scores, int a, int b) {
+    int c = Double.compare(scores[a], scores[b]);
+    return c != 0 ? c < 0 : a > b;
+  }
+}
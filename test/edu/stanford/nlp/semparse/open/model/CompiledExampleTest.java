@@ -0,0 +1,112 @@
+package edu.stanford.nlp.semparse.open.model;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.dataset.Example;
+import edu.stanford.nlp.semparse.open.model.candidate.Candidate;
+import edu.stanford.nlp.semparse.open.model.candidate.CandidateGroup;
+import edu.stanford.nlp.semparse.open.util.SparseAccumulator;
+
+/**
+ * Check that collapsing candidates with identical features (and restricting the unique candidates)
+ * gives the same scores and gradients as working with the original candidates.
+ */
+public class CompiledExampleTest {
+
+  public static void main(String[] args) {
+    Example ex = new Example("test");
+    CandidateGroup group1 = group(ex, "a", "b"), group2 = group(ex, "c");
+    group1.features = vector("group :: bias", "group :: size = 2");
+    group2.features = vector("group :: bias", "group :: size = 1");
+    List<Candidate> candidates = Arrays.asList(
+        candidate(group1, "path :: x", "path :: y"),
+        // Same group and features as the first candidate
+        candidate(group1, "path :: y", "path :: x"),
+        candidate(group1, "path :: x"),
+        // Same features as the first candidate in another group
+        candidate(group2, "path :: x", "path :: y"));
+    Params params = new Params();
+    double[] weights = new double[Params.featureIndexer.size() + 8];
+    for (int i = 0; i < weights.length; i++) weights[i] = 0.1 * (i % 7) - 0.3;
+    params.setWeights(weights);
+    double[] expectedScores = new double[candidates.size()];
+    for (int i = 0; i < candidates.size(); i++)
+      for (Map.Entry<String, Double> entry : candidates.get(i).getCombinedFeatures().entrySet())
+        expectedScores[i] += params.getWeight(entry.getKey()) * entry.getValue();
+
+    CompiledExample compiled = new CompiledExample(candidates, AllFeatureMatcher.matcher, true);
+    check(compiled.size() == 4 && compiled.numUnique() == 3, "numUnique = " + compiled.numUnique());
+    check(Arrays.equals(compiled.uniqueOf, new int[] {0, 0, 1, 2}), "uniqueOf = " + Arrays.toString(compiled.uniqueOf));
+    check(Arrays.equals(compiled.multiplicity, new int[] {2, 1, 1}), "multiplicity = " + Arrays.toString(compiled.multiplicity));
+    double[] uniqueScores = compiled.getScores(params);
+    checkClose(compiled.expand(uniqueScores), expectedScores, "expanded scores");
+    double[] weighted = compiled.weightByMultiplicity(uniqueScores);
+    checkClose(weighted, new double[] {uniqueScores[0] + Math.log(2), uniqueScores[1], uniqueScores[2]},
+        "weighted scores");
+
+    // Without collapsing, each candidate is unique
+    CompiledExample uncollapsed = new CompiledExample(candidates, AllFeatureMatcher.matcher, false);
+    check(uncollapsed.numUnique() == 4, "uncollapsed numUnique = " + uncollapsed.numUnique());
+    checkClose(uncollapsed.getScores(params), expectedScores, "uncollapsed scores");
+
+    // Gradients: factors on unique candidates = factors on all candidates summed over duplicates
+    double[] factors = {0.5, -0.25, 0.75};
+    SparseAccumulator gradient = new SparseAccumulator();
+    compiled.addGradient(factors, gradient);
+    Map<String, Double> expectedGradient = new HashMap<>();
+    for (int u = 0; u < factors.length; u++)
+      for (Map.Entry<String, Double> entry : compiled.uniqueCandidates.get(u).getCombinedFeatures().entrySet())
+        increment(expectedGradient, entry.getKey(), factors[u] * entry.getValue());
+    checkGradient(gradient, expectedGradient);
+
+    // Restriction keeps the kept unique candidates (with their multiplicities) in the given order
+    CompiledExample restricted = compiled.restrict(new int[] {2, 0});
+    check(restricted.numUnique() == 2 && restricted.multiplicity[1] == 2, "restricted multiplicity");
+    checkClose(restricted.getScores(params), new double[] {uniqueScores[2], uniqueScores[0]}, "restricted scores");
+    System.out.println("CompiledExampleTest: OK");
+  }
+
+  static CandidateGroup group(Example ex, String... entities) {
+    return CandidateGroup.fromPredictedEntities(ex, Arrays.asList(entities));
+  }
+
+  static Candidate candidate(CandidateGroup group, String... features) {
+    Candidate candidate = group.addCandidate(null);
+    candidate.features = vector(features);
+    return candidate;
+  }
+
+  static FeatureVector vector(String... features) {
+    FeatureVector v = new FeatureVector();
+    for (String feature : features) {
+      Params.featureIndexer.getIndex(feature);
+      v.addFromString(feature, 1);
+    }
+    return v;
+  }
+
+  static void increment(Map<String, Double> map, String key, double value) {
+    Double old = map.get(key);
+    map.put(key, (old == null ? 0 : old) + value);
+  }
+
+  static void checkGradient(SparseAccumulator gradient, Map<String, Double> expected) {
+    Map<String, Double> actual = new HashMap<>();
+    for (int k = 0; k < gradient.size(); k++)
+      increment(actual, Params.featureIndexer.getString(gradient.idAt(k)), gradient.valueAt(k));
+    check(actual.keySet().equals(expected.keySet()), "gradient features " + actual.keySet());
+    for (Map.Entry<String, Double> entry : expected.entrySet())
+      check(Math.abs(actual.get(entry.getKey()) - entry.getValue()) < 1e-12, "gradient of " + entry.getKey());
+  }
+
+  static void checkClose(double[] actual, double[] expected, String message) {
+    check(actual.length == expected.length, message + ": length " + actual.length);
+    for (int i = 0; i < actual.length; i++)
+      check(Math.abs(actual[i] - expected[i]) < 1e-12, message + ": " + Arrays.toString(actual)
+          + " != " + Arrays.toString(expected));
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) throw new AssertionError(message);
+  }
+}
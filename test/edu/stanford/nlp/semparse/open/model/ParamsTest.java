@@ -0,0 +1,64 @@
+package edu.stanford.nlp.semparse.open.model;
+
+import java.util.*;
+
+/**
+ * Check that the lazily applied L1 regularization of Params gives the same weights
+ * as applying each cutoff to all weights right away.
+ */
+public class ParamsTest {
+
+  public static void main(String[] args) {
+    // Plain gradient steps (step size 1), so that the expected weights are easy to compute
+    Params.opts.adaptiveStepSize = false;
+    Params.opts.stepSizeReduction = 0;
+    Params.opts.initStepSize = 1;
+    Random random = new Random(3);
+    Params params = new Params();
+    Map<String, Double> expected = new HashMap<>();
+    Params copy = null;
+    Map<String, Double> expectedCopy = null;
+    for (int step = 0; step < 3000; step++) {
+      if (random.nextInt(3) == 0) {
+        double cutoff = random.nextDouble() * 0.3;
+        params.applyL1Regularization(cutoff);
+        for (Map.Entry<String, Double> entry : expected.entrySet())
+          entry.setValue(Params.L1Cut(entry.getValue(), cutoff));
+      } else {
+        Map<String, Double> gradient = new HashMap<>();
+        for (int j = 0; j < 3; j++) {
+          String feature = FeatureVector.toFeature("test", "f" + random.nextInt(20));
+          gradient.put(feature, (random.nextBoolean() ? 1 : -1) * (0.01 + random.nextDouble()));
+        }
+        params.update(gradient);
+        for (Map.Entry<String, Double> entry : gradient.entrySet()) {
+          Double weight = expected.get(entry.getKey());
+          expected.put(entry.getKey(), (weight == null ? 0 : weight) + entry.getValue());
+        }
+      }
+      checkWeights(params, expected);
+      if (step == 1500) {
+        // The copy keeps the pending cutoffs, and is not affected by later updates
+        copy = params.copy();
+        expectedCopy = new HashMap<>(expected);
+      }
+    }
+    checkWeights(copy, expectedCopy);
+    // Pruning applies the pending cutoffs first
+    double threshold = 0.5;
+    params.prune(threshold);
+    for (Map.Entry<String, Double> entry : expected.entrySet()) {
+      if (Math.abs(entry.getValue()) < threshold - 1e-9) entry.setValue(0.0);
+    }
+    checkWeights(params, expected);
+    System.out.println("ParamsTest: OK");
+  }
+
+  static void checkWeights(Params params, Map<String, Double> expected) {
+    for (Map.Entry<String, Double> entry : expected.entrySet()) {
+      double weight = params.getWeight(entry.getKey());
+      if (Math.abs(weight - entry.getValue()) > 1e-9)
+        throw new AssertionError(entry.getKey() + ": " + weight + " != " + entry.getValue());
+    }
+  }
+}
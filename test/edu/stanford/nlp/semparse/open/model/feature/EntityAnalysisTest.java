@@ -0,0 +1,58 @@
+package edu.stanford.nlp.semparse.open.model.feature;
+
+import java.util.*;
+
+import edu.stanford.nlp.semparse.open.ling.FrequencyTable;
+import edu.stanford.nlp.semparse.open.ling.LingUtils;
+
+/**
+ * Check EntityAnalysis against the regex-based computation that
+ * FeatureTypeNaiveEntityBased used to do on each entity string.
+ */
+public class EntityAnalysisTest {
+
+  static final String[] ENTITIES = {
+    "New York 2010", "abc123", "42", "", "  ", "x-9 99 007", "Caf\u00e9 \u00bd \u21165",
+    "\u0661\u0662\u0663 12", "the best of 1999", "Mr. O'Neil, Jr.", "ALL CAPS and lower", "a\tb\n3",
+  };
+
+  public static void main(String[] args) {
+    FrequencyTable.topWordsLists = new HashMap<>();
+    FrequencyTable.topWordsLists.put(1, new HashSet<>(Arrays.asList("the")));
+    FrequencyTable.topWordsLists.put(3, new HashSet<>(Arrays.asList("the", "of", "and")));
+    for (String entity : ENTITIES) {
+      EntityAnalysis analysis = new EntityAnalysis(entity);
+      String message = "entity = \"" + entity + "\"";
+      // Shapes
+      String shape = LingUtils.computePhraseShape(entity);
+      String[] wordShapes = shape.split(" ");
+      check(analysis.getPhraseShape().equals(shape), message);
+      check(Arrays.equals(analysis.getWordShapes(), wordShapes), message);
+      check(analysis.getCollapsedPhraseShape().equals(LingUtils.collapse(wordShapes)), message);
+      // Tokens
+      List<String> tokens = LingUtils.getAlphaOrNumericTokens(entity);
+      int digits = 0, bad = 0;
+      Map<Integer, Integer> frequent = new HashMap<>();
+      for (String token : tokens) {
+        if (token.matches("\\d+")) digits++;
+        if (FeatureTypeNaiveEntityBased.BADWORDS.contains(token)) bad++;
+        for (Map.Entry<Integer, Set<String>> entry : FrequencyTable.topWordsLists.entrySet()) {
+          if (entry.getValue().contains(token)) {
+            Integer count = frequent.get(entry.getKey());
+            frequent.put(entry.getKey(), count == null ? 1 : count + 1);
+          }
+        }
+      }
+      check(analysis.getAlphaOrNumericTokens().equals(tokens), message);
+      check(analysis.getNumDigits() == digits, message + ": digits");
+      check(analysis.getNumBadWords() == bad, message + ": bad words");
+      check(analysis.getNumFrequentWords().equals(frequent), message + ": frequent words");
+    }
+    check(new EntityAnalysis("x-9 99 007").getNumDigits() == 3, "digit count");
+    System.out.println("EntityAnalysisTest: OK");
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) throw new AssertionError(message);
+  }
+}
@@ -0,0 +1,68 @@
+package edu.stanford.nlp.semparse.open.util;
+
+/**
+ * Minimize separable quadratics, where the minimum is known in closed form
+ * (with L1, it is the soft-thresholded center).
+ */
+public class LBFGSMinimizerTest {
+
+  public static void main(String[] args) {
+    double[] centers = {3, -2, 0.5, -0.25, 10, 0};
+    double[] curvatures = {1, 4, 0.5, 2, 0.1, 1};
+    // Without L1
+    double[] x = new double[centers.length];
+    new LBFGSMinimizer(5, 200, 1e-12, 0).minimize(quadratic(centers, curvatures), x);
+    for (int i = 0; i < x.length; i++)
+      check(Math.abs(x[i] - centers[i]) < 1e-4, "x[" + i + "] = " + x[i]);
+    // With L1: x[i] = sign(c) * max(|c| - l1 / a, 0)
+    double l1 = 0.6;
+    x = new double[centers.length];
+    new LBFGSMinimizer(5, 200, 1e-12, l1).minimize(quadratic(centers, curvatures), x);
+    for (int i = 0; i < x.length; i++) {
+      double expected = Math.signum(centers[i]) * Math.max(Math.abs(centers[i]) - l1 / curvatures[i], 0);
+      if (expected == 0)
+        check(x[i] == 0, "x[" + i + "] = " + x[i] + " should be exactly 0");
+      else
+        check(Math.abs(x[i] - expected) < 1e-4, "x[" + i + "] = " + x[i] + " != " + expected);
+    }
+    // The function can stop the minimization
+    final int[] numIters = {0};
+    final LBFGSMinimizer.Function function = quadratic(centers, curvatures);
+    new LBFGSMinimizer(5, 200, 0, 0).minimize(new LBFGSMinimizer.Function() {
+      @Override
+      public double valueAt(double[] x, double[] gradient) {
+        return function.valueAt(x, gradient);
+      }
+      @Override
+      public boolean iterationDone(int iter, double[] x, double value) {
+        numIters[0] = iter;
+        return iter < 2;
+      }
+    }, new double[centers.length]);
+    check(numIters[0] == 2, "stopped after " + numIters[0] + " iterations");
+    System.out.println("LBFGSMinimizerTest: OK");
+  }
+
+  /** f(x) = sum_i 0.5 * a[i] * (x[i] - c[i])^2 */
+  static LBFGSMinimizer.Function quadratic(final double[] c, final double[] a) {
+    return new LBFGSMinimizer.Function() {
+      @Override
+      public double valueAt(double[] x, double[] gradient) {
+        double value = 0;
+        for (int i = 0; i < x.length; i++) {
+          value += 0.5 * a[i] * (x[i] - c[i]) * (x[i] - c[i]);
+          gradient[i] = a[i] * (x[i] - c[i]);
+        }
+        return value;
+      }
+      @Override
+      public boolean iterationDone(int iter, double[] x, double value) {
+        return true;
+      }
+    };
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) throw new AssertionError(message);
+  }
+}
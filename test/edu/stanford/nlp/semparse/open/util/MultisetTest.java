@@ -0,0 +1,126 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import java.util.*;
+
+/**
+ * Check Multiset and IntMultiset against a HashMap, with many removals
+ * (backward-shift deletion) interleaved with insertions and resizes.
+ */
+public class MultisetTest {
+
+  public static void main(String[] args) {
+    testRandomOperations();
+    testIntRandomOperations();
+    testNullEntry();
+    testCopyIsIndependent();
+    testRemoveTooMany();
+    System.out.println("MultisetTest: OK");
+  }
+
+  static void testRandomOperations() {
+    Random random = new Random(42);
+    Multiset<String> multiset = new Multiset<>();
+    Map<String, Integer> expected = new HashMap<>();
+    for (int step = 0; step < 20000; step++) {
+      // Few distinct keys so that probe sequences are long and removals are frequent
+      String key = "k" + random.nextInt(50);
+      Integer count = expected.get(key);
+      if (count != null && random.nextBoolean()) {
+        int decr = 1 + random.nextInt(count);
+        multiset.remove(key, decr);
+        if (count == decr) expected.remove(key); else expected.put(key, count - decr);
+      } else {
+        int incr = 1 + random.nextInt(3);
+        multiset.add(key, incr);
+        expected.put(key, (count == null ? 0 : count) + incr);
+      }
+      if (step % 100 == 0) checkSame(multiset, expected);
+    }
+    checkSame(multiset, expected);
+  }
+
+  static void testIntRandomOperations() {
+    Random random = new Random(7);
+    IntMultiset multiset = new IntMultiset();
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (int step = 0; step < 20000; step++) {
+      int key = random.nextInt(50) * 16 - 100;
+      Integer count = expected.get(key);
+      if (count != null && random.nextBoolean()) {
+        multiset.remove(key, count);
+        expected.remove(key);
+      } else {
+        multiset.add(key);
+        expected.put(key, (count == null ? 0 : count) + 1);
+      }
+      if (step % 100 == 0) {
+        int size = 0;
+        for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+          check(multiset.count(entry.getKey()) == entry.getValue(), "count of " + entry.getKey());
+          size += entry.getValue();
+        }
+        check(multiset.numDistinct() == expected.size(), "numDistinct");
+        check(multiset.size() == size, "size");
+        for (int k = -100; k < 700; k++)
+          check(multiset.contains(k) == expected.containsKey(k), "contains " + k);
+      }
+    }
+  }
+
+  static void testNullEntry() {
+    Multiset<String> multiset = new Multiset<>();
+    multiset.add(null);
+    multiset.add("a");
+    multiset.add(null, 2);
+    check(multiset.count(null) == 3, "count of null");
+    check(multiset.contains(null), "contains null");
+    check(multiset.elementSet().contains(null), "elementSet has null");
+    multiset.remove(null, 3);
+    check(!multiset.contains(null), "null removed");
+    check(multiset.count("a") == 1 && multiset.size() == 1, "other entries kept");
+  }
+
+  static void testCopyIsIndependent() {
+    Multiset<String> original = new Multiset<>();
+    for (int i = 0; i < 20; i++) original.add("k" + (i % 7));
+    Multiset<String> copy = new Multiset<>(original);
+    copy.remove("k0", copy.count("k0"));
+    copy.add("new");
+    check(original.count("k0") == 3 && !original.contains("new"), "original unchanged");
+    check(!copy.contains("k0") && copy.count("k1") == 3, "copy changed");
+  }
+
+  static void testRemoveTooMany() {
+    Multiset<String> multiset = new Multiset<>();
+    multiset.add("a");
+    try {
+      multiset.remove("a", 2);
+      throw new AssertionError("remove below 0 should fail");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      multiset.remove("b", 1);
+      throw new AssertionError("remove of an absent entry should fail");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  static void checkSame(Multiset<String> multiset, Map<String, Integer> expected) {
+    int size = 0;
+    for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+      check(multiset.count(entry.getKey()) == entry.getValue(), "count of " + entry.getKey());
+      size += entry.getValue();
+    }
+    for (int k = 0; k < 50; k++)
+      check(multiset.contains("k" + k) == expected.containsKey("k" + k), "contains k" + k);
+    check(multiset.elementSet().equals(expected.keySet()), "elementSet");
+    check(multiset.numDistinct() == expected.size(), "numDistinct");
+    check(multiset.size() == size, "size");
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) throw new AssertionError(message);
+  }
+}
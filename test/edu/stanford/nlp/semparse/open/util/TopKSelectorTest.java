@@ -0,0 +1,46 @@
+package edu.stanford.nlp.semparse.open.util;
+
+import java.util.*;
+
+/**
+ * Check TopKSelector against a stable sort by decreasing score.
+ */
+public class TopKSelectorTest {
+
+  public static void main(String[] args) {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 2000; trial++) {
+      int n = random.nextInt(40);
+      double[] scores = new double[n];
+      for (int i = 0; i < n; i++) {
+        // Few distinct values so that there are many ties
+        scores[i] = random.nextInt(5) - 2;
+        if (random.nextInt(10) == 0) scores[i] = Double.NEGATIVE_INFINITY;
+      }
+      int k = random.nextInt(n + 5);
+      check(Arrays.equals(TopKSelector.select(scores, k), sortedIndices(scores, k)),
+          "scores = " + Arrays.toString(scores) + ", k = " + k);
+    }
+    check(TopKSelector.select(new double[] {1, 2}, 0).length == 0, "k = 0");
+    System.out.println("TopKSelectorTest: OK");
+  }
+
+  static int[] sortedIndices(final double[] scores, int k) {
+    Integer[] order = new Integer[scores.length];
+    for (int i = 0; i < order.length; i++) order[i] = i;
+    // Arrays.sort on objects is stable
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Double.compare(scores[b], scores[a]);
+      }
+    });
+    int[] answer = new int[Math.min(k, scores.length)];
+    for (int i = 0; i < answer.length; i++) answer[i] = order[i];
+    return answer;
+  }
+
+  static void check(boolean condition, String message) {
+    if (!condition) throw new AssertionError(message);
+  }
+}